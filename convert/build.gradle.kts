@@ -3,6 +3,7 @@ plugins {
   id("maven-publish")
   id("com.github.johnrengelman.shadow") version "8.1.1"
   id("com.github.ben-manes.versions") version "0.51.0"
+  id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "pl.asie.ctif"
@@ -16,6 +17,10 @@ dependencies {
   implementation("org.im4java:im4java:1.4.0")
   implementation("com.beust:jcommander:1.82")
   implementation("org.jspecify:jspecify:0.3.0")
+
+  testImplementation(platform("org.junit:junit-bom:5.10.2"))
+  testImplementation("org.junit.jupiter:junit-jupiter")
+  testRuntimeOnly("org.junit.platform:junit-platform-launcher")
 }
 
 java {
@@ -24,15 +29,52 @@ java {
   sourceSets["main"].java {
     srcDir("src")
   }
+  sourceSets["test"].java {
+    srcDir("test")
+  }
+  sourceSets["jmh"].java {
+    srcDir("jmh")
+  }
+
+  // VectorColorKernels; compiled on its own, so only it needs the incubator module.
+  val vector = sourceSets.create("vector") {
+    java {
+      srcDir("vector")
+    }
+    compileClasspath += sourceSets["main"].output + sourceSets["main"].compileClasspath
+  }
+  sourceSets["test"].runtimeClasspath += vector.output
+  sourceSets["jmh"].runtimeClasspath += vector.output
+}
+
+jmh {
+  jmhVersion.set("1.37")
+  jvmArgsAppend.add("--add-modules=jdk.incubator.vector")
+  resultFormat.set("JSON")
 }
 
 tasks {
+  named<JavaCompile>("compileVectorJava") {
+    // only loaded at runtime if the module is present; -Xlint:none hides the incubator warning.
+    options.compilerArgs.addAll(listOf("--add-modules=jdk.incubator.vector", "-Xlint:none"))
+  }
+
+  test {
+    useJUnitPlatform()
+    jvmArgs("--add-modules=jdk.incubator.vector")
+  }
+
   jar {
+    from(sourceSets["vector"].output)
     manifest {
       attributes["Main-Class"] = "pl.asie.ctif.convert.Main"
     }
   }
 
+  shadowJar {
+    from(sourceSets["vector"].output)
+  }
+
   build {
     dependsOn(shadowJar)
   }
@@ -0,0 +1,62 @@
+package pl.asie.ctif.convert.benchmark;
+
+import pl.asie.ctif.convert.platform.AbstractPlatform;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Deterministic synthetic input images, so that every run benchmarks the same pixels.
+ */
+public final class BenchmarkImages {
+  public enum Kind {
+    /**
+     * Smooth gradients; few distinct colors per cell.
+     */
+    GRADIENT,
+    /**
+     * Gradients overlaid with fine detail and noise, closer to a photo.
+     */
+    DETAILED
+  }
+
+  private BenchmarkImages() {
+  }
+
+  public static BufferedImage create(Kind kind, int width, int height) {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Random random = new Random(0xC71FL);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        float fx = (float) x / width;
+        float fy = (float) y / height;
+        int r = (int) (255 * fx);
+        int g = (int) (255 * fy);
+        int b = (int) (255 * (1 - fx) * (1 - fy));
+        if (kind == Kind.DETAILED) {
+          r += (int) (48 * Math.sin(x * 0.31) * Math.cos(y * 0.17)) + random.nextInt(33) - 16;
+          g += (int) (48 * Math.sin((x + y) * 0.09)) + random.nextInt(33) - 16;
+          b += ((x / 8 + y / 8) & 1) * 64 - 32 + random.nextInt(33) - 16;
+        }
+        image.setRGB(x, y, (clamp(r) << 16) | (clamp(g) << 8) | clamp(b));
+      }
+    }
+    return image;
+  }
+
+  /**
+   * @param scalePercent how much of the platform's full resolution to cover; the result
+   *                     is rounded down to whole characters.
+   */
+  public static BufferedImage forPlatform(Kind kind, AbstractPlatform platform, int scalePercent) {
+    int width = platform.getWidthPx() * scalePercent / 100;
+    int height = platform.getHeightPx() * scalePercent / 100;
+    width = Math.max(platform.getCharWidth(), width - width % platform.getCharWidth());
+    height = Math.max(platform.getCharHeight(), height - height % platform.getCharHeight());
+    return create(kind, width, height);
+  }
+
+  private static int clamp(int value) {
+    return Math.max(0, Math.min(255, value));
+  }
+}
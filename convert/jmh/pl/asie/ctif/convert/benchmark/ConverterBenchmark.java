@@ -0,0 +1,89 @@
+package pl.asie.ctif.convert.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import pl.asie.ctif.convert.colorspace.Colorspace;
+import pl.asie.ctif.convert.converter.ConversionListener;
+import pl.asie.ctif.convert.converter.Converter;
+import pl.asie.ctif.convert.converter.Resizer;
+import pl.asie.ctif.convert.converter.UglyConverter;
+import pl.asie.ctif.convert.platform.Platform;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The whole pipeline, as run by the CLI with default options: resize to the platform's
+ * resolution, generate a palette, then encode.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConverterBenchmark {
+  @Param({"OC_TIER_3", "CC_PALETTED", "ZXSPECTRUM"})
+  public Platform platform;
+
+  @Param({"YIQ"})
+  public Colorspace colorspace;
+
+  @Param({"NONE", "ERROR"})
+  public UglyConverter.DitherMode ditherMode;
+
+  @Param({"1"})
+  public int optimizationLevel;
+
+  @Param({"640x400", "1920x1080"})
+  public String sourceSize;
+
+  @Param({"GRADIENT", "DETAILED"})
+  public BenchmarkImages.Kind kind;
+
+  @Param({"1"})
+  public int threads;
+
+  private BufferedImage image;
+
+  @Setup
+  public void setup() {
+    String[] size = sourceSize.split("x");
+    image = BenchmarkImages.create(kind, Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+  }
+
+  @Benchmark
+  public Converter.Result convertImage() {
+    return Converter.convertImage(
+        ConversionListener.NONE,
+        platform.get(),
+        optimizationLevel,
+        colorspace.get(),
+        threads,
+        image,
+        0,
+        0,
+        false,
+        Resizer.Mode.QUALITY_NATIVE,
+        ditherMode,
+        null,
+        1.0F,
+        UglyConverter.CellSearch.PAIRS,
+        0,
+        8,
+        null,
+        null,
+        null,
+        1.0F
+    );
+  }
+}
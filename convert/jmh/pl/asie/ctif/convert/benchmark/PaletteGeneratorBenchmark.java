@@ -0,0 +1,68 @@
+package pl.asie.ctif.convert.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import pl.asie.ctif.convert.colorspace.Colorspace;
+import pl.asie.ctif.convert.converter.ConversionListener;
+import pl.asie.ctif.convert.converter.PaletteGeneratorKMeans;
+import pl.asie.ctif.convert.platform.AbstractPlatform;
+import pl.asie.ctif.convert.platform.Platform;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates the custom colors of a palette. The seed is fixed, so every invocation
+ * does the same amount of work.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PaletteGeneratorBenchmark {
+  // only platforms with custom colors.
+  @Param({"OC_TIER_3", "OC_TIER_2", "CC_PALETTED"})
+  public Platform platform;
+
+  @Param({"YIQ", "RGB"})
+  public Colorspace colorspace;
+
+  @Param({"0", "1", "3"})
+  public int optimizationLevel;
+
+  @Param({"100"})
+  public int scalePercent;
+
+  @Param({"DETAILED"})
+  public BenchmarkImages.Kind kind;
+
+  @Param({"1"})
+  public int threads;
+
+  private AbstractPlatform abstractPlatform;
+  private BufferedImage image;
+
+  @Setup
+  public void setup() {
+    abstractPlatform = platform.get();
+    image = BenchmarkImages.forPlatform(kind, abstractPlatform, scalePercent);
+  }
+
+  @Benchmark
+  public Color[] generate() {
+    return new PaletteGeneratorKMeans(image, abstractPlatform.getPalette(), abstractPlatform.getCustomColorCount(), 0, colorspace.get(), optimizationLevel, ConversionListener.NONE, 0, 8)
+        .generate(threads);
+  }
+}
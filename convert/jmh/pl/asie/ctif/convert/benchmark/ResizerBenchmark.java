@@ -0,0 +1,71 @@
+package pl.asie.ctif.convert.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import pl.asie.ctif.convert.converter.ConversionListener;
+import pl.asie.ctif.convert.converter.Resizer;
+import pl.asie.ctif.convert.platform.AbstractPlatform;
+import pl.asie.ctif.convert.platform.Platform;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resizes a source image to a platform's full resolution. Only the pure-Java
+ * resizers are measured; ImageMagick runs out of process.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResizerBenchmark {
+  @Param({"OC_TIER_3", "CC"})
+  public Platform platform;
+
+  @Param({"640x400", "1920x1080", "4032x3024"})
+  public String sourceSize;
+
+  @Param({"DETAILED"})
+  public BenchmarkImages.Kind kind;
+
+  @Param({"1", "4"})
+  public int threads;
+
+  private BufferedImage image;
+  private int width, height;
+
+  @Setup
+  public void setup() {
+    String[] size = sourceSize.split("x");
+    image = BenchmarkImages.create(kind, Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+    AbstractPlatform abstractPlatform = platform.get();
+    width = abstractPlatform.getWidthPx();
+    height = abstractPlatform.getHeightPx();
+  }
+
+  @Benchmark
+  public BufferedImage speedyResize() {
+    return Resizer.speedyResize(image, width, height);
+  }
+
+  @Benchmark
+  public BufferedImage qualityResizeNative() {
+    return Resizer.qualityResize(image, width, height, true, threads, ConversionListener.NONE);
+  }
+
+  @Benchmark
+  public BufferedImage areaResize() {
+    return Resizer.areaResize(image, width, height, threads);
+  }
+}
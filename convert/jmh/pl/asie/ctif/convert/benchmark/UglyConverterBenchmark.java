@@ -0,0 +1,87 @@
+package pl.asie.ctif.convert.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import pl.asie.ctif.convert.colorspace.Colorspace;
+import pl.asie.ctif.convert.converter.ConversionListener;
+import pl.asie.ctif.convert.converter.DitherArrays;
+import pl.asie.ctif.convert.converter.PaletteGeneratorKMeans;
+import pl.asie.ctif.convert.converter.UglyConverter;
+import pl.asie.ctif.convert.platform.AbstractPlatform;
+import pl.asie.ctif.convert.platform.Platform;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes an already resized image with a precomputed palette, i.e. the cell search
+ * alone. The palette is generated once per trial with a fixed seed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UglyConverterBenchmark {
+  @Param({"OC_TIER_3", "OC_TIER_2", "CC", "ZXSPECTRUM"})
+  public Platform platform;
+
+  @Param({"YIQ", "RGB"})
+  public Colorspace colorspace;
+
+  @Param({"NONE", "ERROR", "ORDERED"})
+  public UglyConverter.DitherMode ditherMode;
+
+  @Param({"1", "3"})
+  public int optimizationLevel;
+
+  @Param({"50", "100"})
+  public int scalePercent;
+
+  @Param({"DETAILED"})
+  public BenchmarkImages.Kind kind;
+
+  @Param({"PAIRS"})
+  public UglyConverter.CellSearch cellSearch;
+
+  @Param({"1"})
+  public int threads;
+
+  private AbstractPlatform abstractPlatform;
+  private BufferedImage image;
+  private Color[] palette;
+  private float[] ditherArray;
+
+  @Setup
+  public void setup() {
+    abstractPlatform = platform.get();
+    image = BenchmarkImages.forPlatform(kind, abstractPlatform, scalePercent);
+    if (abstractPlatform.getCustomColorCount() > 0) {
+      palette = new PaletteGeneratorKMeans(image, abstractPlatform.getPalette(), abstractPlatform.getCustomColorCount(), 0, colorspace.get(), optimizationLevel, ConversionListener.NONE, 0, 8)
+          .generate(threads);
+    } else {
+      palette = abstractPlatform.getPalette();
+    }
+    ditherArray = DitherArrays.get(ditherMode == UglyConverter.DitherMode.ORDERED ? "4x4" : "floyd-steinberg");
+  }
+
+  @Benchmark
+  public byte[] write() {
+    UglyConverter converter = new UglyConverter(image, palette, ditherMode, ditherArray, abstractPlatform, colorspace.get(), optimizationLevel, threads, cellSearch);
+    byte[] data = new byte[converter.getDataSize()];
+    converter.write(ByteBuffer.wrap(data));
+    return data;
+  }
+}
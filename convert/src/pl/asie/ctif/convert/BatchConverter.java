@@ -0,0 +1,281 @@
+package pl.asie.ctif.convert;
+
+import pl.asie.ctif.convert.converter.Converter;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Converts many images in one JVM, as a pipeline: a reader thread decodes inputs, a pool
+ * of workers converts them (resize, palette generation and encoding), and a writer thread
+ * stores the results. Stages are connected by bounded queues, so only a few decoded
+ * images are held in memory at a time.
+ */
+public class BatchConverter {
+  /**
+   * @param root the directory the input was found in; outputs mirror the input's path
+   *             relative to it.
+   */
+  public record Input(Path file, Path root) {
+  }
+
+  private record Decoded(Input input, BufferedImage image, String error, long decodeNanos) {
+  }
+
+  private record Converted(Input input, Converter.Result result, String error, long decodeNanos, long convertNanos) {
+  }
+
+  private static final Decoded END = new Decoded(null, null, null, 0);
+
+  private final BiFunction<BufferedImage, Integer, Converter.Result> converter;
+  private final int threads;
+  private final Path outputDirectory;
+  private final Path previewDirectory;
+  private final PrintStream out;
+
+  /**
+   * @param converter        converts an image using the given amount of threads.
+   * @param threads          total amount of threads to convert with; spread between images
+   *                         first, and within an image only when there are fewer images. The
+   *                         reader and writer threads come on top of these; they mostly wait
+   *                         on I/O and on the queues.
+   * @param outputDirectory  where to write CTIF files; if null, next to each input.
+   * @param previewDirectory where to write PNG previews; if null, none are written.
+   * @param out              where progress and the final report are printed.
+   */
+  public BatchConverter(
+      BiFunction<BufferedImage, Integer, Converter.Result> converter,
+      int threads,
+      Path outputDirectory,
+      Path previewDirectory,
+      PrintStream out
+  ) {
+    this.converter = converter;
+    this.threads = Math.max(1, threads);
+    this.outputDirectory = outputDirectory;
+    this.previewDirectory = previewDirectory;
+    this.out = out;
+  }
+
+  /**
+   * Expands input arguments into files: directories are searched recursively for images
+   * ImageIO can read, and arguments with glob characters ({@code *?[{}) are matched
+   * against the files below their longest literal directory prefix.
+   */
+  public static List<Input> expand(List<String> arguments) throws IOException {
+    Set<String> suffixes = Arrays.stream(ImageIO.getReaderFileSuffixes())
+        .map(s -> s.toLowerCase(Locale.ROOT))
+        .collect(Collectors.toSet());
+
+    List<Input> inputs = new ArrayList<>();
+    for (String argument : arguments) {
+      Path path = Path.of(argument);
+      if (Files.isDirectory(path)) {
+        for (Path file : walk(path)) {
+          String name = file.getFileName().toString();
+          int dot = name.lastIndexOf('.');
+          if (dot >= 0 && suffixes.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+            inputs.add(new Input(file, path));
+          }
+        }
+      } else if (isGlob(argument) && !Files.exists(path)) {
+        Path root = getLiteralPrefix(argument);
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + argument);
+        for (Path file : walk(root)) {
+          if (matcher.matches(file)) {
+            inputs.add(new Input(file, root));
+          }
+        }
+      } else {
+        Path parent = path.toAbsolutePath().getParent();
+        inputs.add(new Input(path, parent != null ? parent : path));
+      }
+    }
+    return inputs;
+  }
+
+  public static boolean isGlob(String argument) {
+    return argument.chars().anyMatch(c -> "*?[{".indexOf(c) >= 0);
+  }
+
+  /**
+   * @return everything up to the last separator before the first glob character.
+   */
+  private static Path getLiteralPrefix(String pattern) {
+    int glob = 0;
+    while ("*?[{".indexOf(pattern.charAt(glob)) < 0) {
+      glob++;
+    }
+    int separator = Math.max(pattern.lastIndexOf('/', glob), pattern.lastIndexOf(FileSystems.getDefault().getSeparator(), glob));
+    return Path.of(separator < 0 ? "" : pattern.substring(0, separator + 1));
+  }
+
+  private static List<Path> walk(Path root) throws IOException {
+    try (Stream<Path> stream = Files.walk(root)) {
+      return stream.filter(Files::isRegularFile).sorted().toList();
+    }
+  }
+
+  /**
+   * @return how many inputs failed to convert.
+   */
+  public int run(List<Input> inputs) {
+    int total = inputs.size();
+    int workers = Math.min(threads, Math.max(1, total));
+    int threadsPerImage = Math.max(1, threads / workers);
+
+    BlockingQueue<Decoded> decoded = new ArrayBlockingQueue<>(workers * 2);
+    BlockingQueue<Converted> converted = new ArrayBlockingQueue<>(workers * 2);
+
+    long start = System.nanoTime();
+    ExecutorService executorService = Executors.newFixedThreadPool(workers + 2);
+    CompletionService<Integer> stages = new ExecutorCompletionService<>(executorService);
+
+    stages.submit(() -> {
+      for (int i = 0; i < total; i++) {
+        Input input = inputs.get(i);
+        long decodeStart = System.nanoTime();
+        BufferedImage image = null;
+        String error = null;
+        try {
+          image = ImageIO.read(input.file().toFile());
+          if (image == null) {
+            error = "unsupported image format";
+          }
+        } catch (IOException | RuntimeException e) {
+          error = String.valueOf(e);
+        }
+        decoded.put(new Decoded(input, image, error, System.nanoTime() - decodeStart));
+      }
+      for (int i = 0; i < workers; i++) {
+        decoded.put(END);
+      }
+      return null;
+    });
+
+    for (int w = 0; w < workers; w++) {
+      stages.submit(() -> {
+        Decoded item;
+        while ((item = decoded.take()) != END) {
+          if (item.error() != null) {
+            converted.put(new Converted(item.input(), null, item.error(), item.decodeNanos(), 0));
+            continue;
+          }
+          long convertStart = System.nanoTime();
+          Converter.Result result = null;
+          String error = null;
+          try {
+            result = converter.apply(item.image(), threadsPerImage);
+          } catch (RuntimeException e) {
+            error = String.valueOf(e);
+          }
+          converted.put(new Converted(item.input(), result, error, item.decodeNanos(), System.nanoTime() - convertStart));
+        }
+        return null;
+      });
+    }
+
+    stages.submit(() -> {
+      int failed = 0;
+      long decodeNanos = 0, convertNanos = 0, writeNanos = 0, bytes = 0;
+      for (int done = 1; done <= total; done++) {
+        Converted item = converted.take();
+        String name = item.input().file().toString();
+        String error = item.error();
+        long itemWriteNanos = 0;
+        if (error == null) {
+          long writeStart = System.nanoTime();
+          try {
+            write(item);
+            bytes += item.result().data().length;
+          } catch (IOException e) {
+            error = String.valueOf(e);
+          }
+          itemWriteNanos = System.nanoTime() - writeStart;
+        }
+        decodeNanos += item.decodeNanos();
+        convertNanos += item.convertNanos();
+        writeNanos += itemWriteNanos;
+
+        if (error != null) {
+          failed++;
+          out.printf("[%d/%d] %s: failed: %s%n", done, total, name, error);
+        } else {
+          out.printf("[%d/%d] %s: decode %d ms, convert %d ms, write %d ms%n", done, total, name,
+              item.decodeNanos() / 1_000_000, item.convertNanos() / 1_000_000, itemWriteNanos / 1_000_000);
+        }
+      }
+
+      double seconds = (System.nanoTime() - start) / 1e9;
+      int succeeded = total - failed;
+      out.printf("Converted %d of %d images in %.2f s (%.2f images/s, %d bytes written).%n",
+          succeeded, total, seconds, succeeded / Math.max(seconds, 1e-9), bytes);
+      if (total > 0) {
+        out.printf("Average per image: decode %d ms, convert %d ms, write %d ms; %d converter threads, %d threads per image.%n",
+            decodeNanos / total / 1_000_000, convertNanos / total / 1_000_000, writeNanos / total / 1_000_000, workers, threadsPerImage);
+      }
+      return failed;
+    });
+
+    executorService.shutdown();
+    try {
+      // stages are waited for as they finish, so that a failing one can't leave the
+      // others blocked on a queue forever.
+      int failed = 0;
+      for (int i = 0; i < workers + 2; i++) {
+        Integer result = stages.take().get();
+        if (result != null) {
+          failed = result;
+        }
+      }
+      return failed;
+    } catch (InterruptedException e) {
+      executorService.shutdownNow();
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      executorService.shutdownNow();
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private void write(Converted item) throws IOException {
+    Path relative = item.input().root().toAbsolutePath().relativize(item.input().file().toAbsolutePath());
+    Path output = outputDirectory != null
+        ? outputDirectory.resolve(relative + ".ctif")
+        : Path.of(item.input().file() + ".ctif");
+    if (output.getParent() != null) {
+      Files.createDirectories(output.getParent());
+    }
+    Files.write(output, item.result().data());
+
+    if (previewDirectory != null) {
+      Path preview = previewDirectory.resolve(relative + ".png");
+      if (preview.getParent() != null) {
+        Files.createDirectories(preview.getParent());
+      }
+      ImageIO.write(item.result().renderPreview(), "png", preview.toFile());
+    }
+  }
+}
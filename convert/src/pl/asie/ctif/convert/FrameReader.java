@@ -0,0 +1,141 @@
+package pl.asie.ctif.convert;
+
+import org.w3c.dom.Node;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Reads every frame of an animated image (in practice, a GIF) through ImageIO. GIF frames
+ * may only cover part of the image, so each one is drawn over the previous ones.
+ */
+public class FrameReader {
+  private static final String GIF_METADATA_FORMAT = "javax_imageio_gif_image_1.0";
+  private static final int DEFAULT_DELAY_MS = 100;
+
+  /**
+   * @param delays how long each frame is shown, in milliseconds.
+   */
+  public record Frames(List<BufferedImage> images, int[] delays) {
+  }
+
+  /**
+   * @return the frames, or null if ImageIO can't read the input.
+   */
+  public static Frames read(InputStream input) throws IOException {
+    try (ImageInputStream stream = ImageIO.createImageInputStream(input)) {
+      Iterator<ImageReader> readers = stream != null ? ImageIO.getImageReaders(stream) : null;
+      if (readers == null || !readers.hasNext()) {
+        return null;
+      }
+
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(stream, false);
+        List<BufferedImage> images = new ArrayList<>();
+        List<Integer> delays = new ArrayList<>();
+        BufferedImage canvas = null;
+        for (int i = 0; ; i++) {
+          BufferedImage image;
+          try {
+            image = reader.read(i);
+          } catch (IndexOutOfBoundsException e) {
+            break;
+          }
+
+          Node metadata = getNativeMetadata(reader.getImageMetadata(i));
+          int x = 0, y = 0, delay = DEFAULT_DELAY_MS;
+          boolean restoreToBackground = false;
+          if (metadata != null) {
+            Node descriptor = getChild(metadata, "ImageDescriptor");
+            if (descriptor != null) {
+              x = getIntAttribute(descriptor, "imageLeftPosition");
+              y = getIntAttribute(descriptor, "imageTopPosition");
+            }
+            Node control = getChild(metadata, "GraphicControlExtension");
+            if (control != null) {
+              // GIF delays are in hundredths of a second; viewers treat 0 as "unset".
+              int gifDelay = getIntAttribute(control, "delayTime");
+              delay = gifDelay > 0 ? gifDelay * 10 : DEFAULT_DELAY_MS;
+              restoreToBackground = "restoreToBackgroundColor".equals(getAttribute(control, "disposalMethod"));
+            }
+          }
+
+          if (canvas == null) {
+            // frames are drawn onto the GIF's logical screen.
+            Node screen = getStreamMetadataChild(reader, "LogicalScreenDescriptor");
+            int width = screen != null ? getIntAttribute(screen, "logicalScreenWidth") : 0;
+            int height = screen != null ? getIntAttribute(screen, "logicalScreenHeight") : 0;
+            canvas = new BufferedImage(Math.max(image.getWidth() + x, width), Math.max(image.getHeight() + y, height), BufferedImage.TYPE_INT_ARGB);
+          }
+          Graphics2D g = canvas.createGraphics();
+          g.drawImage(image, x, y, null);
+          g.dispose();
+
+          BufferedImage frame = new BufferedImage(canvas.getWidth(), canvas.getHeight(), BufferedImage.TYPE_INT_ARGB);
+          frame.setData(canvas.getRaster());
+          images.add(frame);
+          delays.add(delay);
+
+          if (restoreToBackground) {
+            g = canvas.createGraphics();
+            g.setComposite(AlphaComposite.Clear);
+            g.fillRect(x, y, image.getWidth(), image.getHeight());
+            g.dispose();
+          }
+        }
+
+        if (images.isEmpty()) {
+          return null;
+        }
+        return new Frames(images, delays.stream().mapToInt(Integer::intValue).toArray());
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  private static Node getStreamMetadataChild(ImageReader reader, String name) throws IOException {
+    IIOMetadata metadata = reader.getStreamMetadata();
+    if (metadata == null || !"javax_imageio_gif_stream_1.0".equals(metadata.getNativeMetadataFormatName())) {
+      return null;
+    }
+    return getChild(metadata.getAsTree(metadata.getNativeMetadataFormatName()), name);
+  }
+
+  private static Node getNativeMetadata(IIOMetadata metadata) {
+    if (metadata == null || !GIF_METADATA_FORMAT.equals(metadata.getNativeMetadataFormatName())) {
+      return null;
+    }
+    return metadata.getAsTree(GIF_METADATA_FORMAT);
+  }
+
+  private static Node getChild(Node node, String name) {
+    for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+      if (name.equals(child.getNodeName())) {
+        return child;
+      }
+    }
+    return null;
+  }
+
+  private static String getAttribute(Node node, String name) {
+    Node attribute = node.getAttributes().getNamedItem(name);
+    return attribute != null ? attribute.getNodeValue() : null;
+  }
+
+  private static int getIntAttribute(Node node, String name) {
+    String value = getAttribute(node, name);
+    return value != null ? Integer.parseInt(value) : 0;
+  }
+}
@@ -3,6 +3,8 @@ package pl.asie.ctif.convert;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import pl.asie.ctif.convert.colorspace.Colorspace;
+import pl.asie.ctif.convert.converter.ConsoleConversionListener;
+import pl.asie.ctif.convert.converter.ConversionListener;
 import pl.asie.ctif.convert.converter.Converter;
 import pl.asie.ctif.convert.converter.Resizer;
 import pl.asie.ctif.convert.converter.UglyConverter;
@@ -11,8 +13,12 @@ import pl.asie.ctif.convert.platform.Platform;
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Main {
   @SuppressWarnings({"FieldMayBeFinal", "unused"})
@@ -34,18 +40,21 @@ public class Main {
     @Parameter(names = {"--colorspace"}, description = "Image colorspace.")
     private Colorspace colorspace = Colorspace.YIQ;
 
-    @Parameter(names = {"--threads"}, description = "Amount of threads to create.")
+    @Parameter(names = {"--threads"}, description = "Amount of threads to convert with. (Batch mode also uses one thread to read and one to write images.)")
     private int threads = Runtime.getRuntime().availableProcessors();
 
     /* files. */
-    @Parameter(names = {"-o", "--output"}, description = "Output image filename. The image will be in CTIF format.")
+    @Parameter(names = {"-o", "--output"}, description = "Output image filename. The image will be in CTIF format. Use - for standard output. (batch: output directory)")
     private String outputFilename;
 
-    @Parameter(names = {"-P", "--preview"}, description = "Preview image filename. The image will be in PNG format.")
+    @Parameter(names = {"-P", "--preview"}, description = "Preview image filename. The image will be in PNG format. (batch: preview directory)")
     private String previewFilename;
 
-    @Parameter(description = "Input image filename. The image must be in PNG format.")
-    private String inputFilename;
+    @Parameter(names = {"--animate"}, description = "Convert every frame of an animated input (GIF) into a CTIF animation.")
+    private boolean animate = false;
+
+    @Parameter(description = "Input image filename. Several files, directories or glob patterns convert in batch.")
+    private List<String> inputFilenames = new ArrayList<>();
 
     /* sizing. */
     @Parameter(names = {"-W", "--width"}, description = "Output image width.")
@@ -57,8 +66,8 @@ public class Main {
     @Parameter(names = {"-N", "--no-aspect"}, description = "Ignore aspect ratio.")
     private boolean ignoreAspectRatio = false;
 
-    @Parameter(names = {"--resize-mode"}, description = "Resize mode.")
-    private Resizer.Mode resizeMode;
+    @Parameter(names = {"--resize-mode"}, description = "Resize mode. QUALITY uses ImageMagick, if installed.")
+    private Resizer.Mode resizeMode = Resizer.Mode.QUALITY_NATIVE;
 
     /* dither. */
     @Parameter(names = {"--dither-mode"}, description = "Dither mode.")
@@ -70,15 +79,30 @@ public class Main {
     @Parameter(names = {"--dither-level"}, description = "Dither level for error-type dither. 0 = off, 1 = full.")
     private float ditherLevel = 1.0f;
 
+    @Parameter(names = {"--cell-search"}, description = "How cells are matched to color pairs without dithering. (pairs: try every pair; masks: exact, for OC and CC cells)")
+    private UglyConverter.CellSearch cellSearch = UglyConverter.CellSearch.PAIRS;
+
     /* palette. */
     @Parameter(names = {"--palette-sampling-resolution"}, description = "The sampling resolution for palette generation. 0 means full image. (1/4x1/4 image in -O3+)")
     private int paletteSamplingResolution = 0;
 
+    @Parameter(names = {"--palette-histogram-bits"}, description = "Bits per color channel kept when building the palette generation histogram. (1-8, 8 means exact colors)")
+    private int paletteHistogramBits = 8;
+
     @Parameter(names = {"--palette-export"}, description = "File to export the palette to.")
     private String paletteExport;
 
     @Parameter(names = {"--palette"}, description = "File to load the palette from.")
     private String palette;
+
+    @Parameter(names = {"--palette-seed"}, description = "File to load a previous palette from, to start palette generation with. Faster for similar images.")
+    private String paletteSeed;
+
+    @Parameter(names = {"--palette-seed-max-error"}, description = "Largest root-mean-square color error per pixel (0-1) at which the palette seeded with --palette-seed is kept; above it, full palette generation is used instead. (default: always kept)")
+    private float paletteSeedMaxError = Float.POSITIVE_INFINITY;
+
+    @Parameter(names = {"--palette-seed-tolerance"}, description = "At a scene cut in an animation, how much worse than the previous scene's palette the one seeded with it may fit the new scene before full palette generation is used instead. (1 = no worse)")
+    private float paletteSeedTolerance = 1.0f;
   }
 
   public static void main(String[] args) {
@@ -92,54 +116,112 @@ public class Main {
       return;
     }
 
-    if (params.inputFilename == null) {
+    if (params.inputFilenames.isEmpty()) {
       System.err.println("You must specify an input image.");
       System.exit(1);
       return;
     }
 
-    BufferedImage input;
-    try {
-      if (params.inputFilename.equals("-")) {
-        input = ImageIO.read(System.in);
+    String inputFilename = params.inputFilenames.get(0);
+    if (params.inputFilenames.size() > 1
+        || Files.isDirectory(Path.of(inputFilename))
+        || (BatchConverter.isGlob(inputFilename) && !Files.exists(Path.of(inputFilename)))) {
+      System.exit(convertBatch(params));
+      return;
+    }
+
+    BufferedImage input = null;
+    FrameReader.Frames frames = null;
+    try (InputStream stream = inputFilename.equals("-") ? System.in : Files.newInputStream(Path.of(inputFilename))) {
+      if (params.animate) {
+        frames = FrameReader.read(stream);
+        if (frames != null) {
+          input = frames.images().get(0);
+        }
       } else {
-        input = ImageIO.read(Path.of(params.inputFilename).toFile());
+        input = ImageIO.read(stream);
       }
     } catch (Exception e) {
-      System.err.printf("Failed to read input image: %s%n", params.inputFilename);
+      System.err.printf("Failed to read input image: %s%n", inputFilename);
       e.printStackTrace();
       System.exit(1);
       return;
     }
 
     if (input == null) {
-      System.err.printf("Failed to read input image: %s%n", params.inputFilename);
+      System.err.printf("Failed to read input image: %s%n", inputFilename);
       System.exit(1);
       return;
     }
 
-    Converter.Result result = Converter.convertImage(
-        params.debug,
-        params.mode.get(),
-        params.optimizationLevel,
-        params.colorspace.get(),
-        params.threads,
-        input,
-        params.w,
-        params.h,
-        params.ignoreAspectRatio,
-        params.resizeMode,
-        params.ditherMode,
-        params.ditherType,
-        params.ditherLevel,
-        params.paletteSamplingResolution,
-        params.paletteExport,
-        params.palette
-    );
+    String outputFilename = params.outputFilename != null ? params.outputFilename : inputFilename + ".ctif";
+    // keep standard output clean for the image; progress messages go to standard error instead.
+    PrintStream progress = outputFilename.equals("-") ? System.err : System.out;
+
+    Converter.Result result;
+    if (frames != null) {
+      if (params.paletteExport != null) {
+        System.err.println("--palette-export is not supported for animations.");
+        System.exit(1);
+        return;
+      }
+      result = Converter.convertAnimation(
+          new ConsoleConversionListener(params.debug, progress),
+          params.mode.get(),
+          params.optimizationLevel,
+          params.colorspace.get(),
+          params.threads,
+          frames.images(),
+          frames.delays(),
+          params.w,
+          params.h,
+          params.ignoreAspectRatio,
+          params.resizeMode,
+          params.ditherMode,
+          params.ditherType,
+          params.ditherLevel,
+          params.cellSearch,
+          params.paletteSamplingResolution,
+          params.paletteHistogramBits,
+          params.palette,
+          params.paletteSeed,
+          params.paletteSeedMaxError,
+          params.paletteSeedTolerance
+      );
+    } else {
+      result = Converter.convertImage(
+          new ConsoleConversionListener(params.debug, progress),
+          params.mode.get(),
+          params.optimizationLevel,
+          params.colorspace.get(),
+          params.threads,
+          input,
+          params.w,
+          params.h,
+          params.ignoreAspectRatio,
+          params.resizeMode,
+          params.ditherMode,
+          params.ditherType,
+          params.ditherLevel,
+          params.cellSearch,
+          params.paletteSamplingResolution,
+          params.paletteHistogramBits,
+          params.paletteExport,
+          params.palette,
+          params.paletteSeed,
+          params.paletteSeedMaxError
+      );
+    }
 
-    String outputFilename = params.outputFilename != null ? params.outputFilename : params.inputFilename + ".ctif";
     try {
-      Files.write(Path.of(outputFilename), result.data().toByteArray());
+      if (outputFilename.equals("-")) {
+        System.out.write(result.data());
+        if (System.out.checkError()) {
+          throw new IOException("Failed to write to standard output");
+        }
+      } else {
+        Files.write(Path.of(outputFilename), result.data());
+      }
     } catch (IOException e) {
       System.err.printf("Failed to write output image: %s%n", outputFilename);
       e.printStackTrace();
@@ -149,7 +231,7 @@ public class Main {
 
     if (params.previewFilename != null) {
       try {
-        ImageIO.write(result.image(), "png", Path.of(params.previewFilename).toFile());
+        ImageIO.write(result.renderPreview(), "png", Path.of(params.previewFilename).toFile());
       } catch (IOException e) {
         System.err.printf("Failed to write preview image: %s%n", params.previewFilename);
         e.printStackTrace();
@@ -158,6 +240,61 @@ public class Main {
       }
     }
 
-    System.out.println("All done.");
+    progress.println("All done.");
+  }
+
+  /**
+   * @return the exit code.
+   */
+  private static int convertBatch(Parameters params) {
+    if (params.paletteExport != null || params.animate || "-".equals(params.outputFilename)) {
+      System.err.println("--palette-export, --animate and writing to standard output are not supported in batch mode.");
+      return 1;
+    }
+
+    List<BatchConverter.Input> inputs;
+    try {
+      inputs = BatchConverter.expand(params.inputFilenames);
+    } catch (IOException e) {
+      System.err.println("Failed to list input images.");
+      e.printStackTrace();
+      return 1;
+    }
+    if (inputs.isEmpty()) {
+      System.err.println("No input images found.");
+      return 1;
+    }
+
+    // per-image progress would interleave between workers, so it's only shown with --debug;
+    // the batch converter reports each image as it's written instead.
+    BatchConverter batchConverter = new BatchConverter(
+        (image, threads) -> Converter.convertImage(
+            params.debug ? new ConsoleConversionListener(true) : ConversionListener.NONE,
+            params.mode.get(),
+            params.optimizationLevel,
+            params.colorspace.get(),
+            threads,
+            image,
+            params.w,
+            params.h,
+            params.ignoreAspectRatio,
+            params.resizeMode,
+            params.ditherMode,
+            params.ditherType,
+            params.ditherLevel,
+            params.cellSearch,
+            params.paletteSamplingResolution,
+            params.paletteHistogramBits,
+            null,
+            params.palette,
+            params.paletteSeed,
+            params.paletteSeedMaxError
+        ),
+        params.threads,
+        params.outputFilename != null ? Path.of(params.outputFilename) : null,
+        params.previewFilename != null ? Path.of(params.previewFilename) : null,
+        System.out
+    );
+    return batchConverter.run(inputs) > 0 ? 1 : 0;
   }
 }
@@ -6,4 +6,14 @@ public class Util {
         (f1[1] - f2[1]) * (f1[1] - f2[1]) +
         (f1[2] - f2[2]) * (f1[2] - f2[2]);
   }
+
+  /**
+   * Same as {@link #getColorDistanceSq(float[], float[])}, but for colors stored
+   * in flat, interleaved (3 floats per color) planes.
+   */
+  public static double getColorDistanceSq(float[] f1, int o1, float[] f2, int o2) {
+    return (f1[o1] - f2[o2]) * (f1[o1] - f2[o2]) +
+        (f1[o1 + 1] - f2[o2 + 1]) * (f1[o1 + 1] - f2[o2 + 1]) +
+        (f1[o1 + 2] - f2[o2 + 2]) * (f1[o1 + 2] - f2[o2 + 2]);
+  }
 }
@@ -1,26 +1,61 @@
 package pl.asie.ctif.convert.colorspace;
 
 public abstract class AbstractColorspace {
+  // an 8-bit channel value, normalized to 0-1.
+  static final float[] UNIT = new float[256];
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      UNIT[i] = (float) i / 255.0f;
+    }
+  }
+
   public abstract float[] fromRGB(float[] value);
 
   public abstract float[] toRGBArray(float[] value);
 
   public int toRGB(float[] value) {
     float[] rgb = toRGBArray(value);
-    if (rgb[0] < 0) rgb[0] = 0;
-    else if (rgb[0] > 1) rgb[0] = 1;
-    if (rgb[1] < 0) rgb[1] = 0;
-    else if (rgb[1] > 1) rgb[1] = 1;
-    if (rgb[2] < 0) rgb[2] = 0;
-    else if (rgb[2] > 1) rgb[2] = 1;
-    return (Math.round(rgb[0] * 255.0f) << 16) | (Math.round(rgb[1] * 255.0f) << 8) | Math.round(rgb[2] * 255.0f);
+    return pack(rgb[0], rgb[1], rgb[2]);
   }
 
   public float[] fromRGB(int value) {
     return fromRGB(new float[]{
-        (float) ((value >> 16) & 0xFF) / 255.0f,
-        (float) ((value >> 8) & 0xFF) / 255.0f,
-        (float) (value & 0xFF) / 255.0f
+        UNIT[(value >> 16) & 0xFF],
+        UNIT[(value >> 8) & 0xFF],
+        UNIT[value & 0xFF]
     });
   }
+
+  /**
+   * Converts {@code length} RGB colors (alpha is ignored) into {@code out}, three components
+   * per color, giving the same values as {@link #fromRGB(int)}.
+   */
+  public void fromRGB(int[] rgb, int offset, int length, float[] out, int outOffset) {
+    for (int i = 0; i < length; i++) {
+      System.arraycopy(fromRGB(rgb[offset + i]), 0, out, outOffset + i * 3, 3);
+    }
+  }
+
+  /**
+   * Converts {@code length} colors of three components each back into RGB, giving the same
+   * values as {@link #toRGB(float[])}.
+   */
+  public void toRGB(float[] values, int offset, int length, int[] out, int outOffset) {
+    float[] value = new float[3];
+    for (int i = 0; i < length; i++) {
+      System.arraycopy(values, offset + i * 3, value, 0, 3);
+      out[outOffset + i] = toRGB(value);
+    }
+  }
+
+  static int pack(float r, float g, float b) {
+    if (r < 0) r = 0;
+    else if (r > 1) r = 1;
+    if (g < 0) g = 0;
+    else if (g > 1) g = 1;
+    if (b < 0) b = 0;
+    else if (b > 1) b = 1;
+    return (Math.round(r * 255.0f) << 16) | (Math.round(g * 255.0f) << 8) | Math.round(b * 255.0f);
+  }
 }
@@ -11,6 +11,25 @@ public enum Colorspace {
     public float[] toRGBArray(float[] value) {
       return value;
     }
+
+    @Override
+    public void fromRGB(int[] rgb, int offset, int length, float[] out, int outOffset) {
+      for (int i = 0; i < length; i++) {
+        int value = rgb[offset + i];
+        int o = outOffset + i * 3;
+        out[o] = UNIT[(value >> 16) & 0xFF];
+        out[o + 1] = UNIT[(value >> 8) & 0xFF];
+        out[o + 2] = UNIT[value & 0xFF];
+      }
+    }
+
+    @Override
+    public void toRGB(float[] values, int offset, int length, int[] out, int outOffset) {
+      for (int i = 0; i < length; i++) {
+        int o = offset + i * 3;
+        out[outOffset + i] = pack(values[o], values[o + 1], values[o + 2]);
+      }
+    }
   }),
   YUV(new ColorspaceMatrix(
       new float[]{
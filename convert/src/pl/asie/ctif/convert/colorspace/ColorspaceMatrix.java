@@ -3,6 +3,9 @@ package pl.asie.ctif.convert.colorspace;
 public class ColorspaceMatrix extends AbstractColorspace {
   private final float[] matrixFromRGB;
   private final float[] matrixToRGB;
+  // per output component and input channel, that channel's contribution for every 8-bit
+  // value: fromRGB is then three lookups and two additions per component.
+  private final float[][] tablesFromRGB = new float[9][256];
 
   protected ColorspaceMatrix(float[] matrix) {
     this.matrixFromRGB = matrix;
@@ -24,6 +27,13 @@ public class ColorspaceMatrix extends AbstractColorspace {
     matrixToRGB[5] = -detInv * (matrix[0    ] * matrix[3 + 2    ] - matrix[2    ] * matrix[3        ]);
     matrixToRGB[8] = -detInv * (matrix[1    ] * matrix[3        ] - matrix[0    ] * matrix[3 + 1    ]);
     // @formatter:on
+
+    for (int i = 0; i < 9; i++) {
+      for (int v = 0; v < 256; v++) {
+        // the same product mmul3 computes, so the results are identical.
+        tablesFromRGB[i][v] = UNIT[v] * matrix[i];
+      }
+    }
   }
 
   private float[] mmul3(float[] a, float[] b) {
@@ -43,4 +53,35 @@ public class ColorspaceMatrix extends AbstractColorspace {
   public float[] toRGBArray(float[] value) {
     return mmul3(value, matrixToRGB);
   }
+
+  @Override
+  public void fromRGB(int[] rgb, int offset, int length, float[] out, int outOffset) {
+    float[] t0 = tablesFromRGB[0], t1 = tablesFromRGB[1], t2 = tablesFromRGB[2];
+    float[] t3 = tablesFromRGB[3], t4 = tablesFromRGB[4], t5 = tablesFromRGB[5];
+    float[] t6 = tablesFromRGB[6], t7 = tablesFromRGB[7], t8 = tablesFromRGB[8];
+    for (int i = 0; i < length; i++) {
+      int value = rgb[offset + i];
+      int r = (value >> 16) & 0xFF;
+      int g = (value >> 8) & 0xFF;
+      int b = value & 0xFF;
+      int o = outOffset + i * 3;
+      out[o] = t0[r] + t1[g] + t2[b];
+      out[o + 1] = t3[r] + t4[g] + t5[b];
+      out[o + 2] = t6[r] + t7[g] + t8[b];
+    }
+  }
+
+  @Override
+  public void toRGB(float[] values, int offset, int length, int[] out, int outOffset) {
+    float[] m = matrixToRGB;
+    for (int i = 0; i < length; i++) {
+      int o = offset + i * 3;
+      float a = values[o], b = values[o + 1], c = values[o + 2];
+      out[outOffset + i] = pack(
+          a * m[0] + b * m[1] + c * m[2],
+          a * m[3] + b * m[4] + c * m[5],
+          a * m[6] + b * m[7] + c * m[8]
+      );
+    }
+  }
 }
@@ -0,0 +1,114 @@
+package pl.asie.ctif.convert.converter;
+
+import java.util.Arrays;
+
+/**
+ * A weighted histogram of RGB colors, optionally quantized to fewer bits per channel.
+ * Backed by an open-addressing table over the (masked) RGB key; entries are kept in
+ * insertion order, so iterating the histogram is deterministic.
+ */
+final class ColorHistogram {
+  private final int mask;
+  // entry index + 1 per slot, 0 for empty slots.
+  private int[] slots;
+  private int[] keys;
+  private int[] weights;
+  // per-channel sums of the colors that fell into each entry; only kept when quantizing.
+  private long[] sums;
+  private int size;
+
+  ColorHistogram(int bitsPerChannel) {
+    if (bitsPerChannel < 1 || bitsPerChannel > 8) {
+      throw new IllegalArgumentException("Bits per channel must be between 1 and 8, got " + bitsPerChannel + ".");
+    }
+    int channelMask = (0xFF << (8 - bitsPerChannel)) & 0xFF;
+    this.mask = (channelMask << 16) | (channelMask << 8) | channelMask;
+    this.slots = new int[64];
+    this.keys = new int[32];
+    this.weights = new int[32];
+    this.sums = bitsPerChannel < 8 ? new long[32 * 3] : null;
+  }
+
+  void add(int rgb) {
+    rgb &= 0xFFFFFF;
+    int key = rgb & mask;
+    int slotMask = slots.length - 1;
+    int pos = hash(key) & slotMask;
+    int entry;
+    while (true) {
+      entry = slots[pos] - 1;
+      if (entry < 0) {
+        entry = append(key);
+        slots[pos] = entry + 1;
+        break;
+      } else if (keys[entry] == key) {
+        weights[entry]++;
+        break;
+      }
+      pos = (pos + 1) & slotMask;
+    }
+
+    if (sums != null) {
+      sums[entry * 3] += (rgb >> 16) & 0xFF;
+      sums[entry * 3 + 1] += (rgb >> 8) & 0xFF;
+      sums[entry * 3 + 2] += rgb & 0xFF;
+    }
+
+    if (size * 2 > slots.length) {
+      rehash(slots.length * 2);
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  int weight(int i) {
+    return weights[i];
+  }
+
+  /**
+   * @return the color of entry {@code i}; for quantized histograms, the mean of the
+   * colors that fell into it.
+   */
+  int rgb(int i) {
+    if (sums == null) {
+      return keys[i];
+    }
+    long w = weights[i];
+    int r = (int) ((sums[i * 3] + w / 2) / w);
+    int g = (int) ((sums[i * 3 + 1] + w / 2) / w);
+    int b = (int) ((sums[i * 3 + 2] + w / 2) / w);
+    return (r << 16) | (g << 8) | b;
+  }
+
+  private int append(int key) {
+    if (size == keys.length) {
+      keys = Arrays.copyOf(keys, size * 2);
+      weights = Arrays.copyOf(weights, size * 2);
+      if (sums != null) {
+        sums = Arrays.copyOf(sums, size * 2 * 3);
+      }
+    }
+    keys[size] = key;
+    weights[size] = 1;
+    return size++;
+  }
+
+  private void rehash(int length) {
+    slots = new int[length];
+    int slotMask = length - 1;
+    for (int i = 0; i < size; i++) {
+      int pos = hash(keys[i]) & slotMask;
+      while (slots[pos] != 0) {
+        pos = (pos + 1) & slotMask;
+      }
+      slots[pos] = i + 1;
+    }
+  }
+
+  private static int hash(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
@@ -0,0 +1,60 @@
+package pl.asie.ctif.convert.converter;
+
+/**
+ * Batched color math used by the hot loops of the converter and palette generator.
+ * Implementations must produce bit-identical results to
+ * {@link pl.asie.ctif.convert.Util#getColorDistanceSq}, so that output never depends
+ * on which implementation is in use.
+ */
+abstract class ColorKernels {
+  private static final ColorKernels INSTANCE = create();
+
+  static ColorKernels get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Computes the squared distance from the color {@code (c0, c1, c2)} to each of the
+   * first {@code n} colors stored in the planes {@code p0}, {@code p1} and {@code p2},
+   * into {@code out[outOffset..outOffset + n - 1]}.
+   */
+  abstract void distancesSq(float[] p0, float[] p1, float[] p2, int n, float c0, float c1, float c2, float[] out, int outOffset);
+
+  abstract String name();
+
+  /**
+   * Uses the Vector API if the JVM was started with {@code --add-modules jdk.incubator.vector}
+   * (and {@code -Dctif.vector=false} wasn't given), and scalar code otherwise.
+   */
+  private static ColorKernels create() {
+    if (Boolean.parseBoolean(System.getProperty("ctif.vector", "true"))
+        && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+      try {
+        // loaded reflectively, so that this class never links against the incubator module.
+        return (ColorKernels) Class.forName("pl.asie.ctif.convert.converter.VectorColorKernels")
+            .getDeclaredConstructor()
+            .newInstance();
+      } catch (ReflectiveOperationException | LinkageError e) {
+        System.err.println("Failed to initialize vectorized color kernels; using scalar ones.");
+      }
+    }
+    return new Scalar();
+  }
+
+  static final class Scalar extends ColorKernels {
+    @Override
+    void distancesSq(float[] p0, float[] p1, float[] p2, int n, float c0, float c1, float c2, float[] out, int outOffset) {
+      for (int i = 0; i < n; i++) {
+        float d0 = p0[i] - c0;
+        float d1 = p1[i] - c1;
+        float d2 = p2[i] - c2;
+        out[outOffset + i] = d0 * d0 + d1 * d1 + d2 * d2;
+      }
+    }
+
+    @Override
+    String name() {
+      return "scalar";
+    }
+  }
+}
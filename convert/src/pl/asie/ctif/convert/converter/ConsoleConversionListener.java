@@ -0,0 +1,105 @@
+package pl.asie.ctif.convert.converter;
+
+import java.io.PrintStream;
+
+/**
+ * Prints progress to standard output, or another stream; with {@code debug}, also timings
+ * and palette generator details (the latter to standard error). Animations are summarized
+ * rather than reported frame by frame.
+ */
+public class ConsoleConversionListener implements ConversionListener {
+  private final boolean debug;
+  private final PrintStream out;
+  private boolean animation;
+  private long searchedCells, totalCells;
+
+  public ConsoleConversionListener(boolean debug) {
+    this(debug, System.out);
+  }
+
+  /**
+   * @param out where progress is printed, e.g. standard error when the converted image
+   *            goes to standard output.
+   */
+  public ConsoleConversionListener(boolean debug, PrintStream out) {
+    this.debug = debug;
+    this.out = out;
+  }
+
+  @Override
+  public void conversionStarted(int threads, String colorKernels) {
+    animation = false;
+    searchedCells = 0;
+    totalCells = 0;
+    if (debug) {
+      out.println("Using " + threads + " threads.");
+      out.println("Using " + colorKernels + " color kernels.");
+    }
+  }
+
+  @Override
+  public void animationStarted(int frames) {
+    animation = true;
+    out.println("Converting " + frames + " frames...");
+  }
+
+  @Override
+  public void message(String message) {
+    out.println(message);
+  }
+
+  @Override
+  public void stageStarted(Stage stage) {
+    if (!animation) {
+      switch (stage) {
+        case RESIZE -> out.println("Resizing image...");
+        case ENCODE -> out.println("Converting image...");
+        // reading and generating palettes are announced as messages.
+        case PALETTE -> {
+        }
+      }
+    }
+  }
+
+  @Override
+  public void stageFinished(Stage stage, long nanos) {
+    // palettes are only generated at scene cuts, so those are worth reporting.
+    if (debug && (!animation || stage == Stage.PALETTE)) {
+      String name = switch (stage) {
+        case RESIZE -> "Image resize";
+        case PALETTE -> "Palette generation";
+        case ENCODE -> "Image conversion";
+      };
+      out.println(name + " time: " + nanos / 1_000_000 + " ms");
+    }
+  }
+
+  @Override
+  public void paletteRestartFinished(int restart, int iterations, double error) {
+    if (debug) {
+      String worker = restart < 0 ? "seeded worker" : "worker #" + (restart + 1);
+      System.err.println("Palette generator " + worker + " error = " + error + " (" + iterations + " iterations)");
+    }
+  }
+
+  @Override
+  public void paletteGenerated(double error, boolean seeded) {
+    if (debug) {
+      System.err.println("Palette generator error = " + error + (seeded ? " (seeded)" : ""));
+    }
+  }
+
+  @Override
+  public void cellsEncoded(int searched, int total) {
+    searchedCells += searched;
+    totalCells += total;
+  }
+
+  @Override
+  public void conversionFinished(long nanos) {
+    if (debug && animation) {
+      out.println("Animation conversion time: " + nanos / 1_000_000 + " ms");
+      out.println("Searched " + searchedCells + " of " + totalCells + " cells.");
+    }
+  }
+}
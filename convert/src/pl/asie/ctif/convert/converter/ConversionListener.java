@@ -0,0 +1,70 @@
+package pl.asie.ctif.convert.converter;
+
+/**
+ * Receives progress and instrumentation from a conversion. Every method does nothing by
+ * default. Methods are called on the thread that started the conversion, in order.
+ */
+public interface ConversionListener {
+  ConversionListener NONE = new ConversionListener() {
+  };
+
+  enum Stage {
+    RESIZE,
+    PALETTE,
+    ENCODE
+  }
+
+  /**
+   * @param colorKernels the name of the color distance kernels in use.
+   */
+  default void conversionStarted(int threads, String colorKernels) {
+  }
+
+  /**
+   * Called after {@link #conversionStarted} when converting an animation; the stages then
+   * repeat for every frame, except that the palette stage only runs for frames that need a
+   * new palette.
+   */
+  default void animationStarted(int frames) {
+  }
+
+  /**
+   * A progress message meant for people, e.g. "Reading palette...".
+   */
+  default void message(String message) {
+  }
+
+  default void stageStarted(Stage stage) {
+  }
+
+  default void stageFinished(Stage stage, long nanos) {
+  }
+
+  /**
+   * Called once per k-means restart of palette generation, after all of them finished.
+   *
+   * @param restart    the restart's index; -1 for the run seeded with a previous palette.
+   * @param iterations how many iterations it took to converge.
+   * @param error      its squared error, summed over the sampled pixels.
+   */
+  default void paletteRestartFinished(int restart, int iterations, double error) {
+  }
+
+  /**
+   * @param seeded whether the palette seeded with a previous one was kept.
+   */
+  default void paletteGenerated(double error, boolean seeded) {
+  }
+
+  /**
+   * Called for the image, or for every frame of an animation.
+   *
+   * @param searched how many cells were searched for their best colors; the others were
+   *                 unchanged from the previous frame.
+   */
+  default void cellsEncoded(int searched, int total) {
+  }
+
+  default void conversionFinished(long nanos) {
+  }
+}
@@ -0,0 +1,18 @@
+package pl.asie.ctif.convert.converter;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A JFR event spanning one stage of a conversion. Disabled events cost next to nothing.
+ */
+@Name("pl.asie.ctif.ConversionStage")
+@Label("Conversion Stage")
+@Category("CTIF")
+@Description("One stage (resize, palette, encode) of converting an image")
+final class ConversionStageEvent extends jdk.jfr.Event {
+  @Label("Stage")
+  String stage;
+}
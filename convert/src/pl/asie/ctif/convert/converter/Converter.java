@@ -6,24 +6,60 @@ import pl.asie.ctif.convert.platform.AbstractPlatform;
 
 import java.awt.Color;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
 
 public class Converter {
-  public record Result(BufferedImage image, ByteArrayOutputStream data) {
+  /**
+   * How long each stage of a conversion took; summed over all frames of an animation.
+   */
+  public record Timings(Duration resize, Duration palette, Duration encode) {
+    public Timings plus(final Timings other) {
+      return new Timings(resize.plus(other.resize), palette.plus(other.palette), encode.plus(other.encode));
+    }
+  }
+
+  /**
+   * @param data the CTIF file, exactly as long as its contents.
+   */
+  public record Result(AbstractPlatform platform, byte[] data, Timings timings) {
+    /**
+     * Decodes the data into a preview of what the image (or the first frame of an
+     * animation) will look like when displayed.
+     */
+    public BufferedImage renderPreview() {
+      final ByteBuffer buffer = ByteBuffer.wrap(data);
+      if (CtifDecoder.isAnimation(buffer)) {
+        return CtifDecoder.decodeAnimation(buffer, platform).frames().get(0).render();
+      }
+      return CtifDecoder.decode(buffer, platform).render();
+    }
   }
 
   private record Size(int width, int height) {
   }
 
+  private record Timed<T>(T value, Duration elapsed) {
+  }
+
   private record Dither(UglyConverter.DitherMode mode, String type, float level, float[] array) {
   }
 
+  /**
+   * @param listener            told about the conversion's progress, e.g. a {@link ConsoleConversionListener}.
+   * @param paletteSeedMaxError the largest root-mean-square color error per pixel at which a
+   *                            palette seeded from {@code paletteSeed} is kept; see
+   *                            {@link PaletteGeneratorKMeans#generate(int, Color[], double)}.
+   */
   public static Result convertImage(
-      final boolean debug,
+      final ConversionListener listener,
       final AbstractPlatform platform,
       final int optimizationLevel,
       final AbstractColorspace colorspace,
@@ -36,13 +72,16 @@ public class Converter {
       final UglyConverter.DitherMode ditherMode,
       final String ditherType,
       final Float ditherLevel,
+      final UglyConverter.CellSearch cellSearch,
       final int paletteSamplingResolution,
+      final int paletteHistogramBits,
       final String paletteExport,
-      final String palette
+      final String palette,
+      final String paletteSeed,
+      final float paletteSeedMaxError
   ) {
-    if (debug) {
-      System.out.println("Using " + threads + " threads.");
-    }
+    final var stopwatch = Stopwatch.started();
+    listener.conversionStarted(threads, ColorKernels.get().name());
 
     final Size size = determineSize(
         width,
@@ -52,30 +91,31 @@ public class Converter {
         image
     );
     checkSize(size, platform);
+    reportResizer(listener, resizeMode);
 
-    System.out.println("Resizing image...");
-    final var resizeStopwatch = Stopwatch.started();
-    final BufferedImage resizedImage = resizeImage(
+    final Timed<BufferedImage> resizedImage = stage(listener, ConversionListener.Stage.RESIZE, () -> resizeImage(
         image,
         size.width(),
         size.height(),
-        resizeMode
-    );
-    if (debug) {
-      System.out.println("Image resize time: " + resizeStopwatch.timeElapsed().toMillis() + "ms");
-    }
+        resizeMode,
+        threads,
+        listener
+    ));
 
-    final Color[] customPalette = determinePalette(
-        debug,
+    final Timed<PaletteGeneratorKMeans.Palette> customPalette = stage(listener, ConversionListener.Stage.PALETTE, () -> determinePalette(
+        listener,
         platform,
         optimizationLevel,
         colorspace,
         threads,
-        resizedImage,
+        resizedImage.value(),
         paletteSamplingResolution,
+        paletteHistogramBits,
         paletteExport,
-        palette
-    );
+        palette,
+        paletteSeed != null ? readPalette(platform, paletteSeed) : null,
+        paletteSeedMaxError * paletteSeedMaxError
+    ));
 
     final Dither dither = determineDither(
         ditherMode,
@@ -83,21 +123,163 @@ public class Converter {
         ditherLevel
     );
 
-    System.out.println("Converting image...");
-    final var convertStopwatch = Stopwatch.started();
-    final Result result = doUglyConversion(
-        resizedImage,
-        customPalette,
+    final Timed<byte[]> data = stage(listener, ConversionListener.Stage.ENCODE, () -> doUglyConversion(
+        listener,
+        resizedImage.value(),
+        customPalette.value().colors(),
         dither.mode(),
         dither.array(),
         platform,
         colorspace,
-        optimizationLevel
+        optimizationLevel,
+        threads,
+        cellSearch
+    ));
+
+    listener.conversionFinished(stopwatch.timeElapsed().toNanos());
+    return new Result(platform, data.value(), new Timings(resizedImage.elapsed(), customPalette.elapsed(), data.elapsed()));
+  }
+
+  /**
+   * Converts a sequence of frames into a CTIF animation (see {@link CtifAnimationWriter}).
+   * Every frame is resized to the size chosen for the first one. A palette is generated for
+   * the first frame, and again at scene cuts, when most of a frame's pixels changed (seeded
+   * with the previous palette, see {@link PaletteGeneratorKMeans#generate(int, Color[], double)});
+   * cells that can't have changed since the previous frame aren't searched again.
+   *
+   * @param listener             told about the conversion's progress, e.g. a {@link ConsoleConversionListener}.
+   * @param delays               how long each frame is shown, in milliseconds.
+   * @param paletteSeedMaxError  as in {@link #convertImage}, for the first frame.
+   * @param paletteSeedTolerance how many times the previous scene's mean squared error the error
+   *                             of a palette seeded with its palette may be, for it to be kept.
+   */
+  public static Result convertAnimation(
+      final ConversionListener listener,
+      final AbstractPlatform platform,
+      final int optimizationLevel,
+      final AbstractColorspace colorspace,
+      final int threads,
+      final List<BufferedImage> frames,
+      final int[] delays,
+      final int width,
+      final int height,
+      final boolean ignoreAspectRatio,
+      final Resizer.Mode resizeMode,
+      final UglyConverter.DitherMode ditherMode,
+      final String ditherType,
+      final Float ditherLevel,
+      final UglyConverter.CellSearch cellSearch,
+      final int paletteSamplingResolution,
+      final int paletteHistogramBits,
+      final String palette,
+      final String paletteSeed,
+      final float paletteSeedMaxError,
+      final float paletteSeedTolerance
+  ) {
+    final var stopwatch = Stopwatch.started();
+    listener.conversionStarted(threads, ColorKernels.get().name());
+
+    final Size size = determineSize(
+        width,
+        height,
+        platform,
+        ignoreAspectRatio,
+        frames.get(0)
     );
-    if (debug) {
-      System.out.println("Image conversion time: " + convertStopwatch.timeElapsed().toMillis() + " ms");
+    checkSize(size, platform);
+    reportResizer(listener, resizeMode);
+
+    final Dither dither = determineDither(
+        ditherMode,
+        ditherType,
+        ditherLevel
+    );
+
+    listener.animationStarted(frames.size());
+    final CtifAnimationWriter writer = new CtifAnimationWriter();
+    PaletteGeneratorKMeans.Palette customPalette = null;
+    int[] previousRGB = null;
+    UglyConverter.Frame previousFrame = null;
+    Timings timings = new Timings(Duration.ZERO, Duration.ZERO, Duration.ZERO);
+    for (int i = 0; i < frames.size(); i++) {
+      final BufferedImage frameImage = frames.get(i);
+      final Timed<BufferedImage> resizedImage = stage(listener, ConversionListener.Stage.RESIZE, () -> resizeImage(
+          frameImage,
+          size.width(),
+          size.height(),
+          resizeMode,
+          threads,
+          listener
+      ));
+      final int[] rgb = resizedImage.value().getRGB(0, 0, size.width(), size.height(), null, 0, size.width());
+
+      Duration paletteTime = Duration.ZERO;
+      if (customPalette == null || (palette == null && platform.getCustomColorCount() > 0 && isSceneCut(previousRGB, rgb))) {
+        // after a scene cut, start from the previous scene's palette; often little changes.
+        // it is kept if it fits the new scene about as well as it fit the previous one.
+        final Color[] seedPalette = customPalette != null ? customPalette.colors()
+            : paletteSeed != null ? readPalette(platform, paletteSeed) : null;
+        final double seedMaxError = customPalette != null ? customPalette.error() * paletteSeedTolerance
+            : paletteSeedMaxError * paletteSeedMaxError;
+        final Timed<PaletteGeneratorKMeans.Palette> newPalette = stage(listener, ConversionListener.Stage.PALETTE, () -> determinePalette(
+            listener,
+            platform,
+            optimizationLevel,
+            colorspace,
+            threads,
+            resizedImage.value(),
+            paletteSamplingResolution,
+            paletteHistogramBits,
+            null,
+            palette,
+            seedPalette,
+            seedMaxError
+        ));
+        customPalette = newPalette.value();
+        paletteTime = newPalette.elapsed();
+      }
+
+      final Color[] framePalette = customPalette.colors();
+      final UglyConverter.Frame encodeFrom = previousFrame;
+      final int delay = delays[i];
+      final Timed<UglyConverter.Frame> frame = stage(listener, ConversionListener.Stage.ENCODE, () -> {
+        final UglyConverter uglyConverter = new UglyConverter(
+            resizedImage.value(),
+            framePalette,
+            dither.mode(),
+            dither.array(),
+            platform,
+            colorspace,
+            optimizationLevel,
+            threads,
+            cellSearch
+        );
+        final UglyConverter.Frame encoded = uglyConverter.encode(encodeFrom);
+        writer.addFrame(uglyConverter, encoded, delay);
+        return encoded;
+      });
+      listener.cellsEncoded(frame.value().getEncodedCells(), frame.value().getCellCount());
+      timings = timings.plus(new Timings(resizedImage.elapsed(), paletteTime, frame.elapsed()));
+
+      previousRGB = rgb;
+      previousFrame = frame.value();
     }
-    return result;
+
+    listener.conversionFinished(stopwatch.timeElapsed().toNanos());
+    return new Result(platform, writer.toByteArray(), timings);
+  }
+
+  /**
+   * @return whether more than half of the pixels differ between the two frames.
+   */
+  private static boolean isSceneCut(final int[] previousRGB, final int[] rgb) {
+    int changed = 0;
+    for (int i = 0; i < rgb.length; i++) {
+      if (rgb[i] != previousRGB[i]) {
+        changed++;
+      }
+    }
+    return changed * 2 > rgb.length;
   }
 
   private static int rCeil(int x, int y) {
@@ -159,11 +341,21 @@ public class Converter {
     }
   }
 
+  private static void reportResizer(final ConversionListener listener, final Resizer.Mode resizeMode) {
+    if (resizeMode == Resizer.Mode.QUALITY) {
+      listener.message(Resizer.hasImageMagick()
+          ? "ImageMagick found; using ImageMagick for resizing."
+          : "Warning: ImageMagick not found! Please install ImageMagick for improved scaling quality.");
+    }
+  }
+
   private static BufferedImage resizeImage(
       final BufferedImage image,
       final int width,
       final int height,
-      final Resizer.Mode resizeMode
+      final Resizer.Mode resizeMode,
+      final int threads,
+      final ConversionListener listener
   ) {
     final BufferedImage result;
 
@@ -171,58 +363,53 @@ public class Converter {
       result = image;
     } else if (resizeMode == Resizer.Mode.SPEED) {
       result = Resizer.speedyResize(image, width, height);
+    } else if (resizeMode == Resizer.Mode.AREA) {
+      result = Resizer.areaResize(image, width, height, threads);
     } else {
-      result = Resizer.qualityResize(image, width, height, resizeMode == Resizer.Mode.QUALITY_NATIVE);
+      // QUALITY_NATIVE, the default (also for null), doesn't use ImageMagick even if installed.
+      result = Resizer.qualityResize(image, width, height, resizeMode != Resizer.Mode.QUALITY, threads, listener);
     }
 
     return result;
   }
 
-  private static Color[] determinePalette(
-      final boolean debug,
+  /**
+   * @return the palette; its error is only known (otherwise NaN) if it was generated.
+   */
+  private static PaletteGeneratorKMeans.Palette determinePalette(
+      final ConversionListener listener,
       final AbstractPlatform platform,
       final int optimizationLevel,
       final AbstractColorspace colorspace,
       final int threads,
       final BufferedImage resizedImage,
       final int paletteSamplingResolution,
+      final int paletteHistogramBits,
       final String paletteExport,
-      final String palette
+      final String palette,
+      final Color[] paletteSeed,
+      final double paletteSeedMaxError
   ) {
-    Color[] result = new Color[platform.getCustomColorCount()];
+    PaletteGeneratorKMeans.Palette result;
 
     if (platform.getCustomColorCount() > 0) {
       // hooray! we get to use custom colors.
       if (palette != null) {
         // user-provided palette.
-        System.out.println("Reading palette...");
-        try (FileInputStream inputStream = new FileInputStream(palette)) {
-          for (int i = 0; i < platform.getCustomColorCount(); i++) {
-            int red = inputStream.read();
-            int green = inputStream.read();
-            int blue = inputStream.read();
-            result[i] = new Color(red, green, blue);
-          }
-        } catch (IOException e) {
-          throw new RuntimeException(e);
-        }
+        listener.message("Reading palette...");
+        result = new PaletteGeneratorKMeans.Palette(readPalette(platform, palette), Double.NaN);
       } else {
         // generate our own.
-        System.out.println("Generating palette...");
-        final var stopwatch = Stopwatch.started();
-
-        PaletteGeneratorKMeans generator = new PaletteGeneratorKMeans(resizedImage, platform.getPalette(), platform.getCustomColorCount(), paletteSamplingResolution, colorspace, optimizationLevel, debug);
-        result = generator.generate(threads);
+        listener.message("Generating palette...");
 
-        if (debug) {
-          System.out.println("Palette generation time: " + stopwatch.timeElapsed().toMillis() + " ms");
-        }
+        PaletteGeneratorKMeans generator = new PaletteGeneratorKMeans(resizedImage, platform.getPalette(), platform.getCustomColorCount(), paletteSamplingResolution, colorspace, optimizationLevel, listener, new Random().nextLong(), paletteHistogramBits);
+        result = generator.generate(threads, paletteSeed, paletteSeedMaxError);
       }
 
       if (paletteExport != null) {
-        System.out.println("Saving palette...");
+        listener.message("Saving palette...");
         try (FileOutputStream outputStream = new FileOutputStream(paletteExport)) {
-          for (final Color color : result) {
+          for (final Color color : result.colors()) {
             outputStream.write(color.getRed());
             outputStream.write(color.getGreen());
             outputStream.write(color.getBlue());
@@ -232,12 +419,31 @@ public class Converter {
         }
       }
     } else {
-      result = platform.getPalette();
+      result = new PaletteGeneratorKMeans.Palette(platform.getPalette(), Double.NaN);
     }
 
     return result;
   }
 
+  /**
+   * Reads a palette file, as written by {@code --palette-export}: RGB triplets, starting
+   * with the custom colors. The rest of the palette is the platform's fixed colors.
+   */
+  private static Color[] readPalette(final AbstractPlatform platform, final String palette) {
+    final Color[] result = Arrays.copyOf(platform.getPalette(), platform.getPalette().length);
+    try (FileInputStream inputStream = new FileInputStream(palette)) {
+      for (int i = 0; i < platform.getCustomColorCount(); i++) {
+        int red = inputStream.read();
+        int green = inputStream.read();
+        int blue = inputStream.read();
+        result[i] = new Color(red, green, blue);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return result;
+  }
+
   private static Dither determineDither(
       UglyConverter.DitherMode ditherMode,
       String ditherType,
@@ -278,33 +484,52 @@ public class Converter {
     return new Dither(ditherMode, ditherType, ditherLevel, ditherArray);
   }
 
-  private static Result doUglyConversion(
+  /**
+   * Runs one stage of the conversion, telling the listener and recording a JFR event.
+   */
+  private static <T> Timed<T> stage(final ConversionListener listener, final ConversionListener.Stage stage, final Supplier<T> body) {
+    final ConversionStageEvent event = new ConversionStageEvent();
+    event.begin();
+    listener.stageStarted(stage);
+    final long start = System.nanoTime();
+    final T value = body.get();
+    final long nanos = System.nanoTime() - start;
+    listener.stageFinished(stage, nanos);
+    if (event.shouldCommit()) {
+      event.stage = stage.name();
+      event.commit();
+    }
+    return new Timed<>(value, Duration.ofNanos(nanos));
+  }
+
+  private static byte[] doUglyConversion(
+      final ConversionListener listener,
       final BufferedImage resizedImage,
       final Color[] customPalette,
       final UglyConverter.DitherMode ditherMode,
       final float[] ditherArray,
       final AbstractPlatform platform,
       final AbstractColorspace colorspace,
-      final int optimizationLevel
+      final int optimizationLevel,
+      final int threads,
+      final UglyConverter.CellSearch cellSearch
   ) {
-    ByteArrayOutputStream outputData = new ByteArrayOutputStream();
-    BufferedImage outputImage;
-
-    try {
-      final var uglyConverter = new UglyConverter(
-          resizedImage,
-          customPalette,
-          ditherMode,
-          ditherArray,
-          platform,
-          colorspace,
-          optimizationLevel
-      );
-      outputImage = uglyConverter.write(outputData);
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
+    final var uglyConverter = new UglyConverter(
+        resizedImage,
+        customPalette,
+        ditherMode,
+        ditherArray,
+        platform,
+        colorspace,
+        optimizationLevel,
+        threads,
+        cellSearch
+    );
+    final UglyConverter.Frame frame = uglyConverter.encode(null);
+    listener.cellsEncoded(frame.getEncodedCells(), frame.getCellCount());
+    final byte[] outputData = new byte[uglyConverter.getDataSize()];
+    uglyConverter.write(ByteBuffer.wrap(outputData), frame);
 
-    return new Result(outputImage, outputData);
+    return outputData;
   }
 }
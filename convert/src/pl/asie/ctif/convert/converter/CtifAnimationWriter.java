@@ -0,0 +1,162 @@
+package pl.asie.ctif.convert.converter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes frames as a CTIF animation. All values are little-endian:
+ * <pre>
+ * "CTIA", u8 version (1), u16 frame count, then per frame:
+ *   u16 delay in milliseconds
+ *   u8  flags: 1 = key frame, 2 = palette follows
+ *   key frame:   u32 length, then a complete CTIF file
+ *   delta frame: [16 palette entries, as in CTIF], u32 run count, then per run:
+ *                u16 cells to skip, u16 cells in run, then the run's cells, as in CTIF
+ * </pre>
+ * The first frame is a key frame. Later frames only carry the cells that differ from the
+ * previous frame, and the custom palette only when it changed.
+ */
+public class CtifAnimationWriter {
+  private static final int FLAG_KEY_FRAME = 1;
+  private static final int FLAG_PALETTE = 2;
+  private static final int RUN_HEADER_SIZE = 4;
+  private static final int MAX_RUN_VALUE = 0xFFFF;
+
+  private final List<byte[]> frames = new ArrayList<>();
+  private UglyConverter previousConverter;
+  private UglyConverter.Frame previousFrame;
+
+  /**
+   * @param converter the converter the frame was encoded with.
+   */
+  public void addFrame(UglyConverter converter, UglyConverter.Frame frame, int delayMs) {
+    if (frames.size() >= MAX_RUN_VALUE) {
+      throw new IllegalStateException("Too many frames");
+    }
+    int delay = Math.max(0, Math.min(MAX_RUN_VALUE, delayMs));
+
+    ByteBuffer buffer;
+    if (previousFrame == null) {
+      int ctifSize = converter.getDataSize();
+      buffer = allocate(2 + 1 + 4 + ctifSize);
+      buffer.putShort((short) delay);
+      buffer.put((byte) FLAG_KEY_FRAME);
+      buffer.putInt(ctifSize);
+      converter.write(buffer, frame);
+    } else {
+      if (previousFrame.cellColors.length != frame.cellColors.length
+          || previousFrame.cellQuadrants.length != frame.cellQuadrants.length) {
+        throw new IllegalArgumentException("Frame size differs from the first frame");
+      }
+
+      boolean paletteChanged = !converter.hasSamePalette(previousConverter);
+      List<int[]> runs = findChangedRuns(frame, converter.getCellSize());
+      int size = 2 + 1 + (paletteChanged ? 16 * 3 : 0) + 4;
+      for (int[] run : runs) {
+        size += RUN_HEADER_SIZE + run[1] * converter.getCellSize();
+      }
+
+      buffer = allocate(size);
+      buffer.putShort((short) delay);
+      buffer.put((byte) (paletteChanged ? FLAG_PALETTE : 0));
+      if (paletteChanged) {
+        converter.writePalette(buffer);
+      }
+      buffer.putInt(runs.size());
+      for (int[] run : runs) {
+        buffer.putShort((short) run[0]);
+        buffer.putShort((short) run[1]);
+        for (int i = 0; i < run[1]; i++) {
+          converter.writeCell(buffer, frame, run[2] + i);
+        }
+      }
+    }
+
+    frames.add(buffer.array());
+    previousConverter = converter;
+    previousFrame = frame;
+  }
+
+  public int getFrameCount() {
+    return frames.size();
+  }
+
+  public byte[] toByteArray() {
+    int size = 4 + 1 + 2;
+    for (byte[] frame : frames) {
+      size += frame.length;
+    }
+    ByteBuffer buffer = allocate(size);
+    buffer.put((byte) 'C');
+    buffer.put((byte) 'T');
+    buffer.put((byte) 'I');
+    buffer.put((byte) 'A');
+    buffer.put((byte) 1);
+    buffer.putShort((short) frames.size());
+    for (byte[] frame : frames) {
+      buffer.put(frame);
+    }
+    return buffer.array();
+  }
+
+  /**
+   * @return runs of changed cells, as (cells to skip, length, first cell). Gaps too short
+   * to be worth a new run header are included in the surrounding run.
+   */
+  private List<int[]> findChangedRuns(UglyConverter.Frame frame, int cellSize) {
+    int cells = frame.cellColors.length / 2;
+    int quadrantLen = frame.cellQuadrants.length / cells;
+    List<int[]> runs = new ArrayList<>();
+    int runStart = -1, runEnd = 0, lastEnd = 0;
+    for (int cell = 0; cell < cells; cell++) {
+      if (!isChanged(frame, cell, quadrantLen)) {
+        continue;
+      }
+      if (runStart >= 0 && (cell - runEnd) * cellSize <= RUN_HEADER_SIZE && cell - runStart < MAX_RUN_VALUE) {
+        runEnd = cell + 1;
+        continue;
+      }
+      if (runStart >= 0) {
+        lastEnd = addRun(runs, lastEnd, runStart, runEnd);
+      }
+      runStart = cell;
+      runEnd = cell + 1;
+    }
+    if (runStart >= 0) {
+      addRun(runs, lastEnd, runStart, runEnd);
+    }
+    return runs;
+  }
+
+  private boolean isChanged(UglyConverter.Frame frame, int cell, int quadrantLen) {
+    if (frame.cellColors[cell * 2] != previousFrame.cellColors[cell * 2]
+        || frame.cellColors[cell * 2 + 1] != previousFrame.cellColors[cell * 2 + 1]) {
+      return true;
+    }
+    for (int i = cell * quadrantLen; i < (cell + 1) * quadrantLen; i++) {
+      if (frame.cellQuadrants[i] != previousFrame.cellQuadrants[i]) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the end of the added run.
+   */
+  private static int addRun(List<int[]> runs, int lastEnd, int start, int end) {
+    int skip = start - lastEnd;
+    while (skip > MAX_RUN_VALUE) {
+      runs.add(new int[]{MAX_RUN_VALUE, 0, 0});
+      skip -= MAX_RUN_VALUE;
+    }
+    runs.add(new int[]{skip, end - start, start});
+    return end;
+  }
+
+  private static ByteBuffer allocate(int size) {
+    return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+  }
+}
@@ -0,0 +1,270 @@
+package pl.asie.ctif.convert.converter;
+
+import pl.asie.ctif.convert.platform.AbstractPlatform;
+import pl.asie.ctif.convert.platform.Platform;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads CTIF files, as written by {@link UglyConverter}, for all supported platforms.
+ */
+public class CtifDecoder {
+  /**
+   * A decoded CTIF image.
+   *
+   * @param cellColors      background and foreground palette index of every cell, in row-major order.
+   * @param cellQuadrants   foreground bitmask of every cell, {@code quadrantLen} bytes per cell; the
+   *                        top-left pixel is the most significant bit.
+   */
+  public record Image(
+      int platformId,
+      int width,
+      int height,
+      int charWidth,
+      int charHeight,
+      Color[] palette,
+      int[] cellColors,
+      byte[] cellQuadrants
+  ) {
+    public int quadrantLen() {
+      return (charWidth * charHeight + 7) / 8;
+    }
+
+    /**
+     * Renders the image as it would be displayed by a viewer, one pixel per CTIF pixel.
+     */
+    public BufferedImage render() {
+      int pw = charWidth, ph = charHeight, quadrantLen = quadrantLen();
+      int widthPx = width * pw;
+      int[] rgb = new int[widthPx * height * ph];
+      int[] paletteRGB = new int[palette.length];
+      for (int i = 0; i < palette.length; i++) {
+        paletteRGB[i] = palette[i].getRGB() & 0xFFFFFF;
+      }
+
+      for (int cy = 0; cy < height; cy++) {
+        for (int cx = 0; cx < width; cx++) {
+          int cell = cy * width + cx;
+          int bg = paletteRGB[cellColors[cell * 2]];
+          int fg = paletteRGB[cellColors[cell * 2 + 1]];
+          int q = cell * quadrantLen;
+          for (int py = 0; py < ph; py++) {
+            int o = (cy * ph + py) * widthPx + cx * pw;
+            for (int px = 0; px < pw; px++) {
+              int i = (pw * ph - 1) - (py * pw + px);
+              rgb[o + px] = (cellQuadrants[q + (i >> 3)] & (1 << (i & 7))) != 0 ? fg : bg;
+            }
+          }
+        }
+      }
+
+      BufferedImage image = new BufferedImage(widthPx, height * ph, BufferedImage.TYPE_INT_RGB);
+      image.getRaster().setDataElements(0, 0, widthPx, height * ph, rgb);
+      return image;
+    }
+  }
+
+  /**
+   * @param delays how long each frame is shown, in milliseconds.
+   */
+  public record Animation(List<Image> frames, int[] delays) {
+  }
+
+  public static Image decode(byte[] data) {
+    return decode(ByteBuffer.wrap(data), null);
+  }
+
+  /**
+   * @param platform the platform the image was converted for, which supplies the fixed
+   *                 palette colors; if null, it is guessed from the header. (The header does
+   *                 not tell the ZX Spectrum palette modes apart.)
+   * @throws IllegalArgumentException if the data isn't a valid CTIF file
+   */
+  public static Image decode(ByteBuffer data, AbstractPlatform platform) {
+    try {
+      if (data.get() != 'C' || data.get() != 'T' || data.get() != 'I' || data.get() != 'F') {
+        throw new IllegalArgumentException("Invalid header");
+      }
+
+      int headerVersion = data.get() & 0xFF;
+      int platformVariant = data.get() & 0xFF;
+      int platformId = readShort(data);
+      if (headerVersion != 1) {
+        throw new IllegalArgumentException("Unsupported header version: " + headerVersion);
+      }
+      if (platformVariant != 0) {
+        throw new IllegalArgumentException("Unsupported platform variant: " + platformVariant);
+      }
+
+      int width = readShort(data);
+      int height = readShort(data);
+      int pw = data.get() & 0xFF;
+      int ph = data.get() & 0xFF;
+      int bpp = data.get() & 0xFF;
+      if (bpp != 4 && bpp != 8) {
+        throw new IllegalArgumentException("Unsupported bit depth: " + bpp);
+      }
+
+      int paletteEntrySize = data.get() & 0xFF;
+      int customColors = readShort(data);
+      if (customColors > 0 && paletteEntrySize != 3) {
+        throw new IllegalArgumentException("Unsupported palette entry size: " + paletteEntrySize);
+      }
+
+      if (platform == null) {
+        platform = guessPlatform(platformId, bpp, customColors);
+      } else if (platform.getPlatformId() != platformId) {
+        throw new IllegalArgumentException("Platform ID mismatch: " + platformId);
+      }
+      Color[] palette = platform.getPalette();
+      if (bpp == 4 && palette.length > 16) {
+        palette = Arrays.copyOf(palette, 16);
+      }
+      if (customColors > palette.length) {
+        throw new IllegalArgumentException("Too many palette entries: " + customColors);
+      }
+      readPalette(data, palette, customColors);
+
+      Image image = new Image(platformId, width, height, pw, ph, palette, new int[width * height * 2], new byte[width * height * ((pw * ph + 7) / 8)]);
+      for (int cell = 0; cell < width * height; cell++) {
+        readCell(data, image, cell);
+      }
+      return image;
+    } catch (BufferUnderflowException e) {
+      throw new IllegalArgumentException("Truncated CTIF data", e);
+    }
+  }
+
+  /**
+   * Decodes every frame of a CTIF animation, as written by {@link CtifAnimationWriter}.
+   *
+   * @param platform see {@link #decode(ByteBuffer, AbstractPlatform)}.
+   * @throws IllegalArgumentException if the data isn't a valid CTIF animation
+   */
+  public static Animation decodeAnimation(ByteBuffer data, AbstractPlatform platform) {
+    data = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    try {
+      if (data.get() != 'C' || data.get() != 'T' || data.get() != 'I' || data.get() != 'A') {
+        throw new IllegalArgumentException("Invalid header");
+      }
+      int version = data.get() & 0xFF;
+      if (version != 1) {
+        throw new IllegalArgumentException("Unsupported animation version: " + version);
+      }
+
+      int frameCount = data.getShort() & 0xFFFF;
+      List<Image> frames = new ArrayList<>(frameCount);
+      int[] delays = new int[frameCount];
+      Image previous = null;
+      for (int f = 0; f < frameCount; f++) {
+        delays[f] = data.getShort() & 0xFFFF;
+        int flags = data.get() & 0xFF;
+        Image image;
+        if ((flags & 1) != 0) {
+          int length = data.getInt();
+          image = decode(data.slice(data.position(), length), platform);
+          data.position(data.position() + length);
+        } else if (previous == null) {
+          throw new IllegalArgumentException("Animation doesn't start with a key frame");
+        } else {
+          Color[] palette = previous.palette().clone();
+          if ((flags & 2) != 0) {
+            if (palette.length < 16) {
+              throw new IllegalArgumentException("Palette update for a platform without custom colors");
+            }
+            readPalette(data, palette, 16);
+          }
+          image = new Image(previous.platformId(), previous.width(), previous.height(), previous.charWidth(), previous.charHeight(),
+              palette, previous.cellColors().clone(), previous.cellQuadrants().clone());
+
+          int runs = data.getInt();
+          int cell = 0;
+          for (int r = 0; r < runs; r++) {
+            cell += data.getShort() & 0xFFFF;
+            int length = data.getShort() & 0xFFFF;
+            if (cell + length > image.width() * image.height()) {
+              throw new IllegalArgumentException("Cell run out of range in frame " + f);
+            }
+            for (int i = 0; i < length; i++) {
+              readCell(data, image, cell++);
+            }
+          }
+        }
+        frames.add(image);
+        previous = image;
+      }
+      return new Animation(frames, delays);
+    } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+      throw new IllegalArgumentException("Truncated CTIF animation data", e);
+    }
+  }
+
+  /**
+   * @return whether the data starts like a CTIF animation rather than a single image.
+   */
+  public static boolean isAnimation(ByteBuffer data) {
+    return data.remaining() >= 4 && data.get(data.position() + 3) == 'A';
+  }
+
+  private static void readPalette(ByteBuffer data, Color[] palette, int count) {
+    for (int i = 0; i < count; i++) {
+      int b = data.get() & 0xFF;
+      int g = data.get() & 0xFF;
+      int r = data.get() & 0xFF;
+      palette[i] = new Color(r, g, b);
+    }
+  }
+
+  private static void readCell(ByteBuffer data, Image image, int cell) {
+    Color[] palette = image.palette();
+    int pixelCount = image.charWidth() * image.charHeight();
+    int quadrantLen = image.quadrantLen();
+    byte[] cellQuadrants = image.cellQuadrants();
+    int bg = 0, fg = 1;
+    if (palette.length > 2) {
+      if (pixelCount == 1) {
+        // the only pixel is always drawn in the foreground color.
+        fg = data.get() & 0xFF;
+        cellQuadrants[cell * quadrantLen] = 1;
+      } else if (palette.length > 16) {
+        bg = data.get() & 0xFF;
+        fg = data.get() & 0xFF;
+      } else {
+        int colors = data.get() & 0xFF;
+        bg = colors >> 4;
+        fg = colors & 0x0F;
+      }
+      if (pixelCount > 2) {
+        data.get(cellQuadrants, cell * quadrantLen, quadrantLen);
+      }
+    } else {
+      data.get(cellQuadrants, cell * quadrantLen, quadrantLen);
+    }
+    if (bg >= palette.length || fg >= palette.length) {
+      throw new IllegalArgumentException("Palette index out of range in cell " + cell);
+    }
+    image.cellColors()[cell * 2] = bg;
+    image.cellColors()[cell * 2 + 1] = fg;
+  }
+
+  private static AbstractPlatform guessPlatform(int platformId, int bpp, int customColors) {
+    return switch (platformId) {
+      case 1 -> (bpp == 8 ? Platform.OC_TIER_3 : customColors > 0 ? Platform.OC_TIER_2 : Platform.OC_TIER_1).get();
+      case 2 -> (customColors > 0 ? Platform.CC_PALETTED : Platform.CC).get();
+      case 3 -> Platform.ZXSPECTRUM.get();
+      default -> throw new IllegalArgumentException("Unsupported platform ID: " + platformId);
+    };
+  }
+
+  private static int readShort(ByteBuffer data) {
+    int low = data.get() & 0xFF;
+    return low | ((data.get() & 0xFF) << 8);
+  }
+}
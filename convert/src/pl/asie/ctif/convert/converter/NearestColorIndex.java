@@ -0,0 +1,193 @@
+package pl.asie.ctif.convert.converter;
+
+import pl.asie.ctif.convert.Util;
+import pl.asie.ctif.convert.colorspace.AbstractColorspace;
+
+import java.awt.Color;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Finds the nearest palette entry to a color in a given colorspace, using a k-d tree
+ * over the palette. Gives the same answer as a linear scan with
+ * {@link Util#getColorDistanceSq}, including picking the lowest index on ties.
+ */
+public final class NearestColorIndex {
+  private static final int CACHE_SIZE = 16;
+  private static final Map<Key, NearestColorIndex> CACHE = new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Key, NearestColorIndex> eldest) {
+      return size() > CACHE_SIZE;
+    }
+  };
+
+  private record Key(int[] rgb, int from, AbstractColorspace colorspace) {
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key other && from == other.from && colorspace == other.colorspace
+          && Arrays.equals(rgb, other.rgb);
+    }
+
+    @Override
+    public int hashCode() {
+      return (31 * Arrays.hashCode(rgb) + from) * 31 + System.identityHashCode(colorspace);
+    }
+  }
+
+  private final int from;
+  // palette colors in the working colorspace; 3 floats per entry, indexed by palette index
+  // (entries before `from` are unused).
+  private final float[] colors;
+  // k-d tree in implicit form: the node for the range [lo, hi) of `order` is at its midpoint.
+  private final int[] order;
+  private final byte[] axis;
+
+  private NearestColorIndex(Color[] palette, int from, int to, AbstractColorspace colorspace) {
+    this.from = from;
+    this.colors = new float[to * 3];
+    for (int i = from; i < to; i++) {
+      System.arraycopy(colorspace.fromRGB(palette[i].getRGB()), 0, colors, i * 3, 3);
+    }
+
+    this.order = new int[to - from];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = from + i;
+    }
+    this.axis = new byte[order.length];
+    build(0, order.length);
+  }
+
+  /**
+   * Returns the (possibly cached) index over the palette entries {@code [from, to)}.
+   */
+  public static NearestColorIndex get(Color[] palette, int from, int to, AbstractColorspace colorspace) {
+    if (from >= to) {
+      throw new IllegalArgumentException("Cannot index an empty palette range.");
+    }
+
+    int[] rgb = new int[to - from];
+    for (int i = from; i < to; i++) {
+      rgb[i - from] = palette[i].getRGB();
+    }
+    Key key = new Key(rgb, from, colorspace);
+
+    synchronized (CACHE) {
+      NearestColorIndex index = CACHE.get(key);
+      if (index != null) {
+        return index;
+      }
+    }
+
+    NearestColorIndex index = new NearestColorIndex(palette, from, to, colorspace);
+    synchronized (CACHE) {
+      CACHE.put(key, index);
+    }
+    return index;
+  }
+
+  public static NearestColorIndex get(Color[] palette, AbstractColorspace colorspace) {
+    return get(palette, 0, palette.length, colorspace);
+  }
+
+  /**
+   * @return a new search over this index. Searches keep per-lookup state, so each thread
+   * should use its own, reusing it for all of its lookups.
+   */
+  public Search newSearch() {
+    return new Search();
+  }
+
+  /**
+   * @return the squared distance between palette entry {@code entry} and the color at
+   * {@code color[offset..offset + 2]}.
+   */
+  public double distanceSq(int entry, float[] color, int offset) {
+    return Util.getColorDistanceSq(colors, entry * 3, color, offset);
+  }
+
+  private void build(int lo, int hi) {
+    if (hi - lo <= 1) {
+      return;
+    }
+
+    // split along the axis with the largest spread.
+    float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+    float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+    for (int i = lo; i < hi; i++) {
+      for (int k = 0; k < 3; k++) {
+        min[k] = Math.min(min[k], colors[order[i] * 3 + k]);
+        max[k] = Math.max(max[k], colors[order[i] * 3 + k]);
+      }
+    }
+    int a = 0;
+    for (int k = 1; k < 3; k++) {
+      if (max[k] - min[k] > max[a] - min[a]) a = k;
+    }
+
+    final int sortAxis = a;
+    Integer[] range = new Integer[hi - lo];
+    for (int i = lo; i < hi; i++) {
+      range[i - lo] = order[i];
+    }
+    Arrays.sort(range, Comparator.comparingDouble(i -> colors[i * 3 + sortAxis]));
+    for (int i = lo; i < hi; i++) {
+      order[i] = range[i - lo];
+    }
+
+    int mid = (lo + hi) >>> 1;
+    axis[mid] = (byte) a;
+    build(lo, mid);
+    build(mid + 1, hi);
+  }
+
+  private void search(Search search, int lo, int hi) {
+    if (lo >= hi) {
+      return;
+    }
+
+    int mid = (lo + hi) >>> 1;
+    int node = order[mid];
+    double dist = Util.getColorDistanceSq(colors, node * 3, search.color, search.offset);
+    if (dist < search.bestDist || (dist == search.bestDist && node < search.best)) {
+      search.bestDist = dist;
+      search.best = node;
+    }
+
+    if (hi - lo == 1) {
+      return;
+    }
+
+    int a = axis[mid];
+    float diff = search.color[search.offset + a] - colors[node * 3 + a];
+    boolean lowFirst = diff < 0;
+    search(search, lowFirst ? lo : mid + 1, lowFirst ? mid : hi);
+    // entries at exactly the same distance must still be visited to resolve ties by index.
+    if (diff * diff <= search.bestDist) {
+      search(search, lowFirst ? mid + 1 : lo, lowFirst ? hi : mid);
+    }
+  }
+
+  public final class Search {
+    private float[] color;
+    private int offset;
+    private int best;
+    private double bestDist;
+
+    private Search() {
+    }
+
+    /**
+     * @return the palette index nearest to the color at {@code color[offset..offset + 2]}.
+     */
+    public int nearest(float[] color, int offset) {
+      this.color = color;
+      this.offset = offset;
+      this.best = from;
+      this.bestDist = Double.MAX_VALUE;
+      search(this, 0, order.length);
+      return best;
+    }
+  }
+}
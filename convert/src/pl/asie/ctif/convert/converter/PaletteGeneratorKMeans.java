@@ -5,13 +5,14 @@ import pl.asie.ctif.convert.colorspace.AbstractColorspace;
 
 import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
 
 public class PaletteGeneratorKMeans {
   private final BufferedImage image;
@@ -19,13 +20,19 @@ public class PaletteGeneratorKMeans {
   private final int colors;
   private final AbstractColorspace colorspace;
   private final int optimizationLevel;
-  private final boolean debug;
+  private final ConversionListener listener;
+  private final ColorKernels kernels = ColorKernels.get();
 
-  private final Random random = new Random();
-  private final float[][] centroids;
-  private final Map<float[], Integer> pointsWeight = new HashMap<>();
-  private final Map<float[], Double> knownBestError = new HashMap<>();
-  private final Map<float[], Integer> knownBestCentroid = new HashMap<>();
+  private final long seed;
+  // the color histogram, shared between workers; read-only once the constructor returns.
+  private final int pointCount;
+  private final float[] points;
+  private final int[] pointWeights;
+  // how many pixels were sampled; the sum of pointWeights.
+  private final long sampleCount;
+  // best match among the fixed (non-custom) palette colors, per point.
+  private final double[] knownBestError;
+  private final int[] knownBestCentroid;
 
   public PaletteGeneratorKMeans(
       BufferedImage image,
@@ -34,18 +41,41 @@ public class PaletteGeneratorKMeans {
       int samplingRes,
       AbstractColorspace colorspace,
       int optimizationLevel,
-      boolean debug
+      ConversionListener listener
+  ) {
+    this(image, base, colors, samplingRes, colorspace, optimizationLevel, listener, new Random().nextLong(), 8);
+  }
+
+  /**
+   * @param listener      told about every k-means restart, on the thread calling
+   *                      {@link #generate}.
+   * @param seed          seed for the sampling and for every k-means restart; the same seed
+   *                      and inputs always yield the same palette, regardless of thread count.
+   * @param histogramBits bits per RGB channel kept when building the color histogram (1-8);
+   *                      fewer bits merge similar colors into fewer, heavier points.
+   */
+  public PaletteGeneratorKMeans(
+      BufferedImage image,
+      Color[] base,
+      int colors,
+      int samplingRes,
+      AbstractColorspace colorspace,
+      int optimizationLevel,
+      ConversionListener listener,
+      long seed,
+      int histogramBits
   ) {
     this.image = image;
     this.base = base;
     this.colors = colors;
     this.colorspace = colorspace;
     this.optimizationLevel = optimizationLevel;
-    this.debug = debug;
+    this.listener = listener;
+    this.seed = seed;
 
-    this.centroids = new float[base.length][];
+    Random random = new Random(seed);
 
-    Map<Integer, float[]> pointsAdded = new HashMap<>();
+    ColorHistogram histogram = new ColorHistogram(histogramBits);
     if (samplingRes > 0) {
       float stepX = (float) image.getWidth() / samplingRes;
       float stepY = (float) image.getHeight() / samplingRes;
@@ -53,14 +83,7 @@ public class PaletteGeneratorKMeans {
       int stepIY = (int) Math.ceil(stepY);
       for (int jy = 0; jy < samplingRes; jy++) {
         for (int jx = 0; jx < samplingRes * 2; jx++) {
-          int i = image.getRGB(random.nextInt(stepIX) + (int) ((jx % samplingRes) * stepX), random.nextInt(stepIY) + (int) (jy * stepY));
-          if (!pointsAdded.containsKey(i)) {
-            float[] key = this.colorspace.fromRGB(i);
-            pointsAdded.put(i, key);
-            pointsWeight.put(key, 1);
-          } else {
-            pointsWeight.put(pointsAdded.get(i), pointsWeight.get(pointsAdded.get(i)) + 1);
-          }
+          histogram.add(image.getRGB(random.nextInt(stepIX) + (int) ((jx % samplingRes) * stepX), random.nextInt(stepIY) + (int) (jy * stepY)));
         }
       }
     } else {
@@ -69,139 +92,287 @@ public class PaletteGeneratorKMeans {
           int my = Math.min(4, image.getHeight() - jy);
           for (int jx = 0; jx < image.getWidth(); jx += 4) {
             int mx = Math.min(4, image.getWidth() - jx);
-
-            int i = image.getRGB(random.nextInt(mx) + jx, random.nextInt(my) + jy);
-            if (!pointsAdded.containsKey(i)) {
-              float[] key = this.colorspace.fromRGB(i);
-              pointsAdded.put(i, key);
-              pointsWeight.put(key, 1);
-            } else {
-              pointsWeight.put(pointsAdded.get(i), pointsWeight.get(pointsAdded.get(i)) + 1);
-            }
+            histogram.add(image.getRGB(random.nextInt(mx) + jx, random.nextInt(my) + jy));
           }
         }
       } else {
         for (int i : getRGB(image)) {
-          if (!pointsAdded.containsKey(i)) {
-            float[] key = this.colorspace.fromRGB(i);
-            pointsAdded.put(i, key);
-            pointsWeight.put(key, 1);
-          } else {
-            pointsWeight.put(pointsAdded.get(i), pointsWeight.get(pointsAdded.get(i)) + 1);
-          }
+          histogram.add(i);
         }
       }
     }
 
-    for (int i = colors; i < centroids.length; i++) {
-      centroids[i] = this.colorspace.fromRGB(base[i].getRGB());
+    this.pointCount = histogram.size();
+    this.points = new float[pointCount * 3];
+    this.pointWeights = new int[pointCount];
+    int[] pointRGB = new int[pointCount];
+    long sampleCount = 0;
+    for (int i = 0; i < pointCount; i++) {
+      pointRGB[i] = histogram.rgb(i);
+      pointWeights[i] = histogram.weight(i);
+      sampleCount += pointWeights[i];
     }
+    this.sampleCount = sampleCount;
+    this.colorspace.fromRGB(pointRGB, 0, pointCount, points, 0);
 
-    for (Map.Entry<float[], Integer> weight : pointsWeight.entrySet()) {
-      double bestError = Float.MAX_VALUE;
-      int bestCentroid = 0;
-      for (int i = colors; i < centroids.length; i++) {
-        double err = Util.getColorDistanceSq(weight.getKey(), centroids[i]);
-        if (err < bestError) {
-          bestError = err;
-          bestCentroid = i;
-          if (err == 0) break;
-        }
+    this.knownBestError = new double[pointCount];
+    this.knownBestCentroid = new int[pointCount];
+    if (colors < base.length) {
+      NearestColorIndex fixedColors = NearestColorIndex.get(base, colors, base.length, this.colorspace);
+      NearestColorIndex.Search search = fixedColors.newSearch();
+      for (int p = 0; p < pointCount; p++) {
+        int bestCentroid = search.nearest(points, p * 3);
+        knownBestError[p] = fixedColors.distanceSq(bestCentroid, points, p * 3);
+        knownBestCentroid[p] = bestCentroid;
       }
-      knownBestError.put(weight.getKey(), bestError);
-      knownBestCentroid.put(weight.getKey(), bestCentroid);
+    } else {
+      Arrays.fill(knownBestError, Float.MAX_VALUE);
     }
   }
 
+  /**
+   * A generated palette.
+   *
+   * @param error the mean squared error per sampled pixel, in the generator's colorspace.
+   */
+  public record Palette(Color[] colors, double error) {
+  }
+
   public Color[] generate(int threads) {
-    Result bestResult = null;
-    Worker[] workers = new Worker[20 / (this.optimizationLevel + 1)];
-    ExecutorService executorService = Executors.newFixedThreadPool(threads);
+    return generate(threads, null, 0).colors();
+  }
 
-    for (int i = 0; i < workers.length; i++) {
-      workers[i] = new Worker();
-      executorService.submit(workers[i]);
+  /**
+   * Generates a palette, warm-started from a previous one: k-means is first run once from
+   * the seed palette's custom colors, and that palette is kept if its error is at most
+   * {@code maxError}. Otherwise, the usual restarts are run, yielding the same palette as
+   * {@link #generate(int)}.
+   *
+   * @param seedPalette a palette for the same platform, e.g. the previous frame's; if null,
+   *                    the usual restarts are run straight away.
+   * @param maxError    the largest mean squared error per sampled pixel (see
+   *                    {@link Palette#error()}) at which the seeded palette is kept.
+   */
+  public Palette generate(int threads, Color[] seedPalette, double maxError) {
+    if (seedPalette != null) {
+      if (seedPalette.length < colors) {
+        throw new IllegalArgumentException("Seed palette has " + seedPalette.length + " colors, expected " + colors);
+      }
+      float[][] centroids = new float[colors][];
+      for (int i = 0; i < colors; i++) {
+        centroids[i] = this.colorspace.fromRGB(seedPalette[i].getRGB());
+      }
+      Result seeded = runRestart(-1, centroids);
+      listener.paletteRestartFinished(-1, seeded.iterations, seeded.error);
+      if (seeded.error / sampleCount <= maxError) {
+        listener.paletteGenerated(seeded.error, true);
+        return new Palette(seeded.colors, seeded.error / sampleCount);
+      }
     }
 
-    executorService.shutdown();
+    int restarts = Math.max(1, 20 / (this.optimizationLevel + 1));
+    ExecutorService executorService = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, restarts)));
     try {
-      executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
-    } catch (InterruptedException e) {
-      e.printStackTrace();
-    }
-
-    for (int i = 0; i < workers.length; i++) {
-      Result result = workers[i].result;
-      if (debug) {
-        System.err.println("Palette generator worker #" + (i + 1) + " error = " + result.error);
+      List<Future<Result>> workers = new ArrayList<>();
+      for (int i = 0; i < restarts; i++) {
+        workers.add(submitRestart(executorService, i));
       }
-      if (bestResult == null || bestResult.error > result.error) {
-        bestResult = result;
+
+      Result bestResult = null;
+      for (int i = 0; i < workers.size(); i++) {
+        Result result = await(workers.get(i), executorService);
+        listener.paletteRestartFinished(i, result.iterations, result.error);
+        if (bestResult == null || bestResult.error > result.error) {
+          bestResult = result;
+        }
       }
-    }
 
-    if (debug) {
-      System.err.println("Palette generator error = " + bestResult.error);
+      listener.paletteGenerated(bestResult.error, false);
+
+      return new Palette(bestResult.colors, bestResult.error / sampleCount);
+    } finally {
+      executorService.shutdown();
     }
+  }
 
-    return bestResult.colors;
+  private Future<Result> submitRestart(ExecutorService executorService, int restart) {
+    // every restart gets its own generator, so results don't depend on scheduling.
+    Random random = new Random(seed + restart + 1);
+    return executorService.submit(() -> runRestart(restart, randomCentroids(random)));
   }
 
-  public class Worker implements Runnable {
-    public Result result;
+  private Result runRestart(int restart, float[][] centroids) {
+    PaletteRestartEvent event = new PaletteRestartEvent();
+    event.begin();
+    Result result = generateKMeans(centroids);
+    if (event.shouldCommit()) {
+      event.restart = restart;
+      event.iterations = result.iterations;
+      event.error = result.error;
+      event.commit();
+    }
+    return result;
+  }
 
-    @Override
-    public void run() {
-      result = generateKMeans();
+  private static Result await(Future<Result> future, ExecutorService executorService) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      executorService.shutdownNow();
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      executorService.shutdownNow();
+      throw new RuntimeException(e.getCause());
     }
   }
 
-  record Result(Color[] colors, double error) {
+  record Result(Color[] colors, double error, int iterations) {
   }
 
-  private Result generateKMeans() {
+  private float[][] randomCentroids(Random random) {
+    float[][] centroids = new float[colors][];
     for (int i = 0; i < colors; i++) {
       centroids[i] = this.colorspace.fromRGB(image.getRGB(random.nextInt(image.getWidth()), random.nextInt(image.getHeight())));
     }
+    return centroids;
+  }
+
+  /**
+   * Lloyd's k-means, with Hamerly's bounds to skip most of the assignment scans once
+   * the centroids settle. For every point, the exact error to its assigned centroid is
+   * still computed each iteration; the other centroids are only scanned when the
+   * bounds can't prove that none of them is at least as close. This yields the same
+   * assignments (ties included) as the plain scan.
+   *
+   * @param centroids the initial custom colors; updated in place.
+   */
+  Result generateKMeans(float[][] centroids) {
+    // the same centroids, one plane per channel, for the batched full scan.
+    float[] centroids0 = new float[colors];
+    float[] centroids1 = new float[colors];
+    float[] centroids2 = new float[colors];
+    float[] centroidErrors = new float[colors];
+    for (int i = 0; i < colors; i++) {
+      centroids0[i] = centroids[i][0];
+      centroids1[i] = centroids[i][1];
+      centroids2[i] = centroids[i][2];
+    }
 
     double totalError = 0;
+    // indexed by centroid; fixed base colors past `colors` are accumulated but never moved.
+    float[][] means = new float[base.length][3];
+    int[] meanDivs = new int[base.length];
+
+    // per point: assigned centroid, and a lower bound on the (non-squared) distance to
+    // every custom centroid it is not assigned to.
+    int[] assigned = new int[pointCount];
+    double[] lower = new double[pointCount];
+    // per custom centroid: half the distance to its nearest other custom centroid.
+    double[] halfSeparation = new double[colors];
+    boolean boundsValid = false;
 
+    int iterations = 0;
     for (int reps = 0; reps < 128; reps++) {
-      float[][] means = new float[centroids.length][3];
-      int[] meanDivs = new int[centroids.length];
+      iterations++;
+      for (float[] mean : means) {
+        Arrays.fill(mean, 0);
+      }
+      Arrays.fill(meanDivs, 0);
+
+      if (boundsValid) {
+        for (int i = 0; i < colors; i++) {
+          double minSq = Double.MAX_VALUE;
+          for (int j = 0; j < colors; j++) {
+            if (i != j) {
+              minSq = Math.min(minSq, Util.getColorDistanceSq(centroids[i], centroids[j]));
+            }
+          }
+          halfSeparation[i] = Math.sqrt(minSq) / 2;
+        }
+      }
 
       totalError = 0;
-      for (Map.Entry<float[], Integer> weight : pointsWeight.entrySet()) {
-        double bestError = knownBestError.get(weight.getKey());
-        int bestCentroid = knownBestCentroid.get(weight.getKey());
-        int mul = weight.getValue();
+      for (int p = 0; p < pointCount; p++) {
+        int po = p * 3;
+        double bestError = knownBestError[p];
+        int bestCentroid = knownBestCentroid[p];
+        int mul = pointWeights[p];
 
-        for (int i = 0; i < colors; i++) {
-          double err = Util.getColorDistanceSq(weight.getKey(), centroids[i]);
-          if (err < bestError) {
-            bestError = err;
-            bestCentroid = i;
-            if (err == 0) break;
+        boolean found = false;
+        if (boundsValid) {
+          int a = assigned[p];
+          if (a >= colors) {
+            // assigned to a fixed color, which stays put.
+            found = isStrictlyBelow(Math.sqrt(bestError), lower[p]);
+          } else {
+            double err = Util.getColorDistanceSq(points, po, centroids[a], 0);
+            double dist = Math.sqrt(err);
+            if (isStrictlyBelow(dist, Math.sqrt(bestError)) && isStrictlyBelow(dist, Math.max(halfSeparation[a], lower[p]))) {
+              bestError = err;
+              bestCentroid = a;
+              found = true;
+            }
+          }
+        }
+
+        if (!found) {
+          // full scan. also track the nearest custom centroid besides the chosen one.
+          double min1 = Double.MAX_VALUE, min2 = Double.MAX_VALUE;
+          boolean exact = false;
+          kernels.distancesSq(centroids0, centroids1, centroids2, colors, points[po], points[po + 1], points[po + 2], centroidErrors, 0);
+          for (int i = 0; i < colors; i++) {
+            double err = centroidErrors[i];
+            if (err < min1) {
+              min2 = min1;
+              min1 = err;
+            } else if (err < min2) {
+              min2 = err;
+            }
+            if (err < bestError) {
+              bestError = err;
+              bestCentroid = i;
+              if (err == 0) {
+                exact = true;
+                break;
+              }
+            }
+          }
+
+          assigned[p] = bestCentroid;
+          if (exact) {
+            lower[p] = 0;
+          } else {
+            lower[p] = Math.sqrt(bestCentroid < colors ? min2 : min1);
           }
         }
 
         totalError += bestError * mul;
-        means[bestCentroid][0] += weight.getKey()[0] * mul;
-        means[bestCentroid][1] += weight.getKey()[1] * mul;
-        means[bestCentroid][2] += weight.getKey()[2] * mul;
+        means[bestCentroid][0] += points[po] * mul;
+        means[bestCentroid][1] += points[po + 1] * mul;
+        means[bestCentroid][2] += points[po + 2] * mul;
         meanDivs[bestCentroid] += mul;
       }
 
       boolean changed = false;
+      double maxDrift = 0;
       for (int i = 0; i < colors; i++) {
         if (meanDivs[i] > 0) {
           float n0 = means[i][0] / meanDivs[i];
           float n1 = means[i][1] / meanDivs[i];
           float n2 = means[i][2] / meanDivs[i];
           if (n0 != centroids[i][0] || n1 != centroids[i][1] || n2 != centroids[i][2]) {
+            maxDrift = Math.max(maxDrift, Math.sqrt(
+                (n0 - centroids[i][0]) * (n0 - centroids[i][0]) +
+                    (n1 - centroids[i][1]) * (n1 - centroids[i][1]) +
+                    (n2 - centroids[i][2]) * (n2 - centroids[i][2])
+            ));
             centroids[i][0] = n0;
             centroids[i][1] = n1;
             centroids[i][2] = n2;
+            centroids0[i] = n0;
+            centroids1[i] = n1;
+            centroids2[i] = n2;
             changed = true;
           }
         }
@@ -209,13 +380,33 @@ public class PaletteGeneratorKMeans {
       if (!changed) {
         break;
       }
+
+      // no custom centroid moved closer to any point than by maxDrift.
+      for (int p = 0; p < pointCount; p++) {
+        lower[p] -= maxDrift;
+      }
+      boundsValid = true;
     }
 
+    float[] flatCentroids = new float[colors * 3];
+    for (int k = 0; k < colors; k++) {
+      System.arraycopy(centroids[k], 0, flatCentroids, k * 3, 3);
+    }
+    int[] rgb = new int[colors];
+    this.colorspace.toRGB(flatCentroids, 0, colors, rgb, 0);
     Color[] out = Arrays.copyOf(base, base.length);
     for (int k = 0; k < colors; k++) {
-      out[k] = new Color(this.colorspace.toRGB(centroids[k]) | 0xFF000000);
+      out[k] = new Color(rgb[k] | 0xFF000000);
     }
-    return new Result(out, totalError);
+    return new Result(out, totalError, iterations);
+  }
+
+  /**
+   * @return whether {@code a < b} holds even after allowing for the float rounding in
+   * the distances the bounds were derived from.
+   */
+  private static boolean isStrictlyBelow(double a, double b) {
+    return a * (1 + 1e-4) + 1e-5 < b;
   }
 
   private static int[] getRGB(BufferedImage image) {
@@ -0,0 +1,26 @@
+package pl.asie.ctif.convert.converter;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A JFR event spanning one k-means restart of palette generation.
+ */
+@Name("pl.asie.ctif.PaletteRestart")
+@Label("Palette Restart")
+@Category("CTIF")
+@Description("One k-means run of palette generation")
+final class PaletteRestartEvent extends jdk.jfr.Event {
+  @Label("Restart")
+  @Description("The restart's index; -1 for the run seeded with a previous palette")
+  int restart;
+
+  @Label("Iterations")
+  int iterations;
+
+  @Label("Error")
+  @Description("Squared error, summed over the sampled pixels")
+  double error;
+}
@@ -0,0 +1,334 @@
+package pl.asie.ctif.convert.converter;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+
+/**
+ * A separable Lanczos (3 lobes) resampler working in linear light with premultiplied
+ * alpha, as ImageMagick does with {@code -colorspace RGB -filter Lanczos -resize}. When
+ * shrinking, the filter is widened to cover every source pixel; optionally, large images
+ * are first reduced by averaging boxes of pixels. Rows are split between threads.
+ */
+public final class Resampler {
+  private static final int LOBES = 3;
+  // linear values are quantized to this many steps before converting back to sRGB; fine
+  // enough that dark tones round to the same 8-bit value as the exact curve.
+  private static final int LINEAR_STEPS = 16384;
+  private static final float[] SRGB_TO_LINEAR = new float[256];
+  // the same, in fixed point, for box averaging.
+  private static final int LINEAR_FIXED_ONE = 1 << 16;
+  private static final int[] SRGB_TO_LINEAR_FIXED = new int[256];
+  private static final byte[] LINEAR_TO_SRGB = new byte[LINEAR_STEPS + 1];
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      double v = i / 255.0;
+      SRGB_TO_LINEAR[i] = (float) (v <= 0.04045 ? v / 12.92 : Math.pow((v + 0.055) / 1.055, 2.4));
+      SRGB_TO_LINEAR_FIXED[i] = Math.round(SRGB_TO_LINEAR[i] * LINEAR_FIXED_ONE);
+    }
+    for (int i = 0; i <= LINEAR_STEPS; i++) {
+      double v = (double) i / LINEAR_STEPS;
+      double s = v <= 0.0031308 ? v * 12.92 : 1.055 * Math.pow(v, 1 / 2.4) - 0.055;
+      LINEAR_TO_SRGB[i] = (byte) Math.round(s * 255);
+    }
+  }
+
+  /**
+   * The source pixels contributing to each destination pixel along one axis: for
+   * destination pixel {@code d}, {@code count[d]} pixels from {@code start[d]} on, weighted
+   * by {@code weights[d * stride]} onwards.
+   */
+  private record Weights(int[] start, int[] count, float[] weights, int stride) {
+  }
+
+  private Resampler() {
+  }
+
+  /**
+   * @return the resized image, of type {@link BufferedImage#TYPE_INT_ARGB}.
+   */
+  public static BufferedImage resize(BufferedImage image, int width, int height, int threads) {
+    return resize(image, width, height, false, threads);
+  }
+
+  /**
+   * @param boxReduce whether to first shrink by the largest integer factors (per axis) that
+   *                  leave at least twice the target size, averaging each box of pixels.
+   *                  Much faster for sources many times the target size, as the Lanczos
+   *                  filter then only covers a few pixels; the result is nearly the same.
+   * @return the resized image, of type {@link BufferedImage#TYPE_INT_ARGB}.
+   */
+  public static BufferedImage resize(BufferedImage image, int width, int height, boolean boxReduce, int threads) {
+    int sourceWidth = image.getWidth();
+    int sourceHeight = image.getHeight();
+    int factorX = boxReduce ? Math.max(1, sourceWidth / (width * 2)) : 1;
+    int factorY = boxReduce ? Math.max(1, sourceHeight / (height * 2)) : 1;
+    int reducedWidth = sourceWidth / factorX;
+    int reducedHeight = sourceHeight / factorY;
+    Weights horizontal = weights(reducedWidth, width);
+    Weights vertical = weights(reducedHeight, height);
+
+    // every (reduced) source row resampled to the new width, as premultiplied linear RGBA.
+    float[] rows = new float[reducedHeight * width * 4];
+    forEachRow(reducedHeight, threads, () -> {
+      int[] argb = new int[sourceWidth];
+      float[] decoded = new float[reducedWidth * 4];
+      long[] columns = factorX > 1 || factorY > 1 ? new long[sourceWidth * 4] : null;
+      return y -> {
+        if (factorX == 1 && factorY == 1) {
+          readRow(image, y, argb);
+          decode(argb, decoded);
+        } else {
+          reduceRows(image, y, factorX, factorY, reducedWidth, reducedHeight, argb, columns, decoded);
+        }
+        resampleRow(decoded, horizontal, rows, y * width * 4);
+      };
+    });
+
+    int[] result = new int[width * height];
+    forEachRow(height, threads, () -> {
+      float[] sums = new float[width * 4];
+      return y -> resampleColumns(rows, width, vertical, y, sums, result);
+    });
+
+    BufferedImage resizedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    resizedImage.setRGB(0, 0, width, height, result, 0, width);
+    return resizedImage;
+  }
+
+  /**
+   * Reads a row of pixels as ARGB, straight from the raster for the common image types.
+   */
+  private static void readRow(BufferedImage image, int y, int[] argb) {
+    int width = image.getWidth();
+    Raster raster = image.getRaster();
+    switch (image.getType()) {
+      case BufferedImage.TYPE_INT_ARGB -> raster.getDataElements(0, y, width, 1, argb);
+      case BufferedImage.TYPE_INT_RGB -> {
+        raster.getDataElements(0, y, width, 1, argb);
+        for (int x = 0; x < width; x++) {
+          argb[x] |= 0xFF000000;
+        }
+      }
+      // data elements are in band order: R, G, B(, A).
+      case BufferedImage.TYPE_3BYTE_BGR -> {
+        byte[] data = (byte[]) raster.getDataElements(0, y, width, 1, null);
+        for (int x = 0, i = 0; x < width; x++, i += 3) {
+          argb[x] = 0xFF000000 | (data[i] & 0xFF) << 16 | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF);
+        }
+      }
+      case BufferedImage.TYPE_4BYTE_ABGR -> {
+        byte[] data = (byte[]) raster.getDataElements(0, y, width, 1, null);
+        for (int x = 0, i = 0; x < width; x++, i += 4) {
+          argb[x] = (data[i + 3] & 0xFF) << 24 | (data[i] & 0xFF) << 16 | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF);
+        }
+      }
+      default -> image.getRGB(0, y, width, 1, argb, 0, width);
+    }
+  }
+
+  /**
+   * Converts ARGB pixels to premultiplied linear RGBA.
+   */
+  private static void decode(int[] argb, float[] decoded) {
+    for (int x = 0; x < argb.length; x++) {
+      int pixel = argb[x];
+      float alpha = (pixel >>> 24) / 255.0f;
+      decoded[x * 4] = SRGB_TO_LINEAR[(pixel >> 16) & 0xFF] * alpha;
+      decoded[x * 4 + 1] = SRGB_TO_LINEAR[(pixel >> 8) & 0xFF] * alpha;
+      decoded[x * 4 + 2] = SRGB_TO_LINEAR[pixel & 0xFF] * alpha;
+      decoded[x * 4 + 3] = alpha;
+    }
+  }
+
+  /**
+   * Averages boxes of {@code factorX} by {@code factorY} pixels into one row of the reduced
+   * image, as premultiplied linear RGBA. The last box of a row (and the boxes of the last
+   * row) also take in the pixels left over at the edge.
+   *
+   * @param columns scratch space for per-column sums, four per source pixel.
+   */
+  private static void reduceRows(BufferedImage image, int y, int factorX, int factorY, int reducedWidth, int reducedHeight, int[] argb, long[] columns, float[] decoded) {
+    Arrays.fill(columns, 0);
+    int firstRow = y * factorY;
+    int lastRow = y == reducedHeight - 1 ? image.getHeight() : firstRow + factorY;
+    // summed down the columns first, then across each box; in fixed point, premultiplied by
+    // 8-bit alpha.
+    for (int sy = firstRow; sy < lastRow; sy++) {
+      readRow(image, sy, argb);
+      for (int sx = 0, i = 0; sx < argb.length; sx++, i += 4) {
+        int pixel = argb[sx];
+        int alpha = pixel >>> 24;
+        columns[i] += SRGB_TO_LINEAR_FIXED[(pixel >> 16) & 0xFF] * alpha;
+        columns[i + 1] += SRGB_TO_LINEAR_FIXED[(pixel >> 8) & 0xFF] * alpha;
+        columns[i + 2] += SRGB_TO_LINEAR_FIXED[pixel & 0xFF] * alpha;
+        columns[i + 3] += alpha;
+      }
+    }
+
+    for (int x = 0; x < reducedWidth; x++) {
+      int first = x * factorX;
+      int last = x == reducedWidth - 1 ? argb.length : first + factorX;
+      long r = 0, g = 0, b = 0, a = 0;
+      for (int i = first * 4; i < last * 4; i += 4) {
+        r += columns[i];
+        g += columns[i + 1];
+        b += columns[i + 2];
+        a += columns[i + 3];
+      }
+      double pixels = (double) (last - first) * (lastRow - firstRow);
+      float colorScale = (float) (1 / (pixels * 255 * LINEAR_FIXED_ONE));
+      decoded[x * 4] = r * colorScale;
+      decoded[x * 4 + 1] = g * colorScale;
+      decoded[x * 4 + 2] = b * colorScale;
+      decoded[x * 4 + 3] = (float) (a / (pixels * 255));
+    }
+  }
+
+  private static void resampleRow(float[] decoded, Weights weights, float[] rows, int rowOffset) {
+    int dstLength = weights.start().length;
+    for (int d = 0; d < dstLength; d++) {
+      float r = 0, g = 0, b = 0, a = 0;
+      int w = d * weights.stride();
+      int s = weights.start()[d] * 4;
+      for (int k = 0; k < weights.count()[d]; k++, w++, s += 4) {
+        float weight = weights.weights()[w];
+        r += decoded[s] * weight;
+        g += decoded[s + 1] * weight;
+        b += decoded[s + 2] * weight;
+        a += decoded[s + 3] * weight;
+      }
+      int o = rowOffset + d * 4;
+      rows[o] = r;
+      rows[o + 1] = g;
+      rows[o + 2] = b;
+      rows[o + 3] = a;
+    }
+  }
+
+  private static void resampleColumns(float[] rows, int width, Weights weights, int y, float[] sums, int[] result) {
+    Arrays.fill(sums, 0);
+    int w = y * weights.stride();
+    int rowLength = width * 4;
+    for (int k = 0; k < weights.count()[y]; k++, w++) {
+      float weight = weights.weights()[w];
+      int rowOffset = (weights.start()[y] + k) * rowLength;
+      for (int i = 0; i < rowLength; i++) {
+        sums[i] += rows[rowOffset + i] * weight;
+      }
+    }
+
+    int offset = y * width;
+    for (int x = 0; x < width; x++) {
+      float alpha = Math.min(sums[x * 4 + 3], 1.0f);
+      if (alpha <= 0) {
+        result[offset + x] = 0;
+        continue;
+      }
+      result[offset + x] = Math.round(alpha * 255) << 24
+          | toSRGB(sums[x * 4] / alpha) << 16
+          | toSRGB(sums[x * 4 + 1] / alpha) << 8
+          | toSRGB(sums[x * 4 + 2] / alpha);
+    }
+  }
+
+  private static int toSRGB(float linear) {
+    // Lanczos lobes overshoot; clamp.
+    if (linear <= 0) {
+      return 0;
+    } else if (linear >= 1) {
+      return 0xFF;
+    }
+    return LINEAR_TO_SRGB[(int) (linear * LINEAR_STEPS + 0.5f)] & 0xFF;
+  }
+
+  private static Weights weights(int sourceLength, int length) {
+    double scale = (double) sourceLength / length;
+    double filterScale = Math.max(1, scale);
+    double support = LOBES * filterScale;
+    int stride = (int) Math.ceil(support * 2) + 2;
+
+    int[] start = new int[length];
+    int[] count = new int[length];
+    float[] weights = new float[length * stride];
+    double[] scratch = new double[stride];
+    for (int d = 0; d < length; d++) {
+      double center = (d + 0.5) * scale;
+      int first = Math.max(0, (int) Math.floor(center - support));
+      int last = Math.min(sourceLength, (int) Math.ceil(center + support));
+      double sum = 0;
+      for (int s = first; s < last; s++) {
+        scratch[s - first] = lanczos((s + 0.5 - center) / filterScale);
+        sum += scratch[s - first];
+      }
+      start[d] = first;
+      count[d] = last - first;
+      // normalized, so that pixels near the edges don't darken.
+      for (int k = 0; k < count[d]; k++) {
+        weights[d * stride + k] = (float) (scratch[k] / sum);
+      }
+    }
+    return new Weights(start, count, weights, stride);
+  }
+
+  private static double lanczos(double x) {
+    if (x == 0) {
+      return 1;
+    } else if (x <= -LOBES || x >= LOBES) {
+      return 0;
+    }
+    double px = Math.PI * x;
+    return LOBES * Math.sin(px) * Math.sin(px / LOBES) / (px * px);
+  }
+
+  /**
+   * Runs the tasks made by {@code worker} for every row, on up to {@code threads} threads;
+   * each thread gets its own task, and with it its own scratch space.
+   */
+  private static void forEachRow(int rows, int threads, Supplier<IntConsumer> worker) {
+    if (threads <= 1 || rows <= 1) {
+      IntConsumer task = worker.get();
+      for (int y = 0; y < rows; y++) {
+        task.accept(y);
+      }
+      return;
+    }
+
+    AtomicInteger nextRow = new AtomicInteger();
+    int workerCount = Math.min(threads, rows);
+    ExecutorService executorService = Executors.newFixedThreadPool(workerCount);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int i = 0; i < workerCount; i++) {
+      futures.add(executorService.submit(() -> {
+        IntConsumer task = worker.get();
+        int y;
+        while ((y = nextRow.getAndIncrement()) < rows) {
+          task.accept(y);
+        }
+      }));
+    }
+    executorService.shutdown();
+    try {
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      executorService.shutdownNow();
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      executorService.shutdownNow();
+      throw new RuntimeException(e.getCause());
+    }
+  }
+}
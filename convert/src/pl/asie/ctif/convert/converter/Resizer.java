@@ -11,14 +11,21 @@ import java.awt.image.BufferedImage;
 import java.io.IOException;
 
 public class Resizer {
-  public static BufferedImage qualityResize(BufferedImage image, int width, int height, boolean forceNoImageMagick) {
-    if (forceNoImageMagick || !hasImageMagick()) {
-      BufferedImage resizedImage = new BufferedImage(width, height, image.getType());
-      Graphics2D g = resizedImage.createGraphics();
-      g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-      g.drawImage(image, 0, 0, width, height, null);
-      g.dispose();
-      return resizedImage;
+  // probed on first use, once per JVM; probing spawns a process.
+  private static final class ImageMagick {
+    private static final boolean AVAILABLE = probeImageMagick();
+  }
+
+  /**
+   * Resizes with a Lanczos filter in linear light: through ImageMagick if allowed and
+   * installed, otherwise (or if ImageMagick fails) in-process with {@link Resampler}.
+   *
+   * @param threads  how many threads the in-process resampler may use.
+   * @param listener told if ImageMagick fails.
+   */
+  public static BufferedImage qualityResize(BufferedImage image, int width, int height, boolean forceNoImageMagick, int threads, ConversionListener listener) {
+    if (forceNoImageMagick || !ImageMagick.AVAILABLE) {
+      return Resampler.resize(image, width, height, threads);
     } else {
       ConvertCmd cmd = new ConvertCmd();
       IMOperation op = new IMOperation();
@@ -34,14 +41,29 @@ public class Resizer {
       try {
         cmd.run(op, image);
       } catch (Exception e) {
-        System.err.println("Failed to resize image using ImageMagick.");
-        e.printStackTrace();
+        listener.message("Failed to resize image using ImageMagick (" + e + "); using the built-in resampler.");
       }
 
-      return s2b.getImage();
+      BufferedImage resizedImage = s2b.getImage();
+      return resizedImage != null ? resizedImage : Resampler.resize(image, width, height, threads);
     }
   }
 
+  /**
+   * @return whether ImageMagick is installed; probed on the first call.
+   */
+  public static boolean hasImageMagick() {
+    return ImageMagick.AVAILABLE;
+  }
+
+  /**
+   * Like {@link #qualityResize} without ImageMagick, but first averages boxes of pixels to
+   * get within twice the target size; much faster for large images.
+   */
+  public static BufferedImage areaResize(BufferedImage image, int width, int height, int threads) {
+    return Resampler.resize(image, width, height, true, threads);
+  }
+
   public static BufferedImage speedyResize(BufferedImage image, int width, int height) {
     BufferedImage resizedImage = new BufferedImage(width, height, image.getType());
     Graphics2D g = resizedImage.createGraphics();
@@ -52,12 +74,25 @@ public class Resizer {
   }
 
   public enum Mode {
+    /**
+     * Nearest neighbour.
+     */
     SPEED,
+    /**
+     * Lanczos, in-process with {@link Resampler}; the default.
+     */
     QUALITY_NATIVE,
-    QUALITY
+    /**
+     * Lanczos through ImageMagick, if it is installed.
+     */
+    QUALITY,
+    /**
+     * Box averaging by integer factors, then Lanczos in-process.
+     */
+    AREA
   }
 
-  private static boolean hasImageMagick() {
+  private static boolean probeImageMagick() {
     boolean hasImageMagick = true;
 
     try {
@@ -71,12 +106,6 @@ public class Resizer {
       }
     }
 
-    if (hasImageMagick) {
-      System.out.println("ImageMagick found; using ImageMagick for resizing.");
-      return true;
-    } else {
-      System.out.println("Warning: ImageMagick not found! Please install ImageMagick for improved scaling quality.");
-      return false;
-    }
+    return hasImageMagick;
   }
 }
@@ -11,7 +11,18 @@ import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 public class UglyConverter {
   public enum DitherMode {
@@ -20,17 +31,77 @@ public class UglyConverter {
     ORDERED
   }
 
+  /**
+   * How the best color pair of a cell is searched for when not dithering.
+   */
+  public enum CellSearch {
+    /**
+     * Try every pair of palette colors. From -O1 up, on every platform, only pairs among the
+     * palette colors nearest to each cell's pixels are tried: at most 20 colors at -O1, 14 at
+     * -O2, 10 at -O3 and 6 beyond.
+     */
+    PAIRS,
+    /**
+     * Try every foreground mask and pick the nearest color to each group's mean.
+     * Exact and much faster, but only used for cells of at most {@value #MAX_MASK_PIXELS}
+     * pixels (OC, CC); larger cells fall back to {@link #PAIRS}.
+     */
+    MASKS;
+
+    static final int MAX_MASK_PIXELS = 8;
+  }
+
+  /**
+   * The encoded cells of one image. Passing it to {@link #encode(Frame)} when converting the
+   * next frame of an animation lets cells that can't have changed be copied instead of
+   * searched again.
+   */
+  public static final class Frame {
+    private final UglyConverter converter;
+    final int[] cellColors;
+    final int[] cellQuadrants;
+    private final float[] cellErrors;
+    private final int encodedCells;
+
+    private Frame(UglyConverter converter, int[] cellColors, int[] cellQuadrants, float[] cellErrors, int encodedCells) {
+      this.converter = converter;
+      this.cellColors = cellColors;
+      this.cellQuadrants = cellQuadrants;
+      this.cellErrors = cellErrors;
+      this.encodedCells = encodedCells;
+    }
+
+    /**
+     * @return how many cells were searched, rather than copied from the previous frame.
+     */
+    public int getEncodedCells() {
+      return encodedCells;
+    }
+
+    public int getCellCount() {
+      return cellColors.length / 2;
+    }
+  }
+
   private final BufferedImage image;
   private final Color[] palette;
   private final DitherMode ditherMode;
   private final float[] ditherMatrix;
   private final AbstractPlatform platform;
+  private final AbstractColorspace colorspace;
   private final int optimizationLevel;
+  private final int threads;
+  private final CellSearch cellSearch;
 
   private final int ditherMatrixSize, ditherMatrixOffset, ditherMax;
-  private final float[][] img;
-  private final float[][] pal;
+  private final int[] rgb;
+  // flat, interleaved planes: 3 floats per pixel/palette entry.
+  private final float[] img;
+  private final float[] pal;
   private final int pw, ph, cw, ch;
+  private final ColorKernels kernels = ColorKernels.get();
+  // how many cells away quantization error can be diffused to.
+  private final int errorReachX, errorReachY;
 
   public UglyConverter(
       BufferedImage image,
@@ -40,13 +111,43 @@ public class UglyConverter {
       AbstractPlatform platform,
       AbstractColorspace colorspace,
       int optimizationLevel
+  ) {
+    this(image, palette, ditherMode, ditherMatrix, platform, colorspace, optimizationLevel, 1);
+  }
+
+  public UglyConverter(
+      BufferedImage image,
+      Color[] palette,
+      DitherMode ditherMode,
+      float[] ditherMatrix,
+      AbstractPlatform platform,
+      AbstractColorspace colorspace,
+      int optimizationLevel,
+      int threads
+  ) {
+    this(image, palette, ditherMode, ditherMatrix, platform, colorspace, optimizationLevel, threads, CellSearch.PAIRS);
+  }
+
+  public UglyConverter(
+      BufferedImage image,
+      Color[] palette,
+      DitherMode ditherMode,
+      float[] ditherMatrix,
+      AbstractPlatform platform,
+      AbstractColorspace colorspace,
+      int optimizationLevel,
+      int threads,
+      CellSearch cellSearch
   ) {
     this.image = image;
     this.palette = palette;
     this.ditherMode = ditherMode;
     this.ditherMatrix = ditherMatrix;
     this.platform = platform;
+    this.colorspace = colorspace;
     this.optimizationLevel = optimizationLevel;
+    this.threads = threads;
+    this.cellSearch = cellSearch;
 
     if (ditherMode == DitherMode.ORDERED) {
       assert ditherMatrix != null;
@@ -59,395 +160,814 @@ public class UglyConverter {
       this.ditherMax = 0;
     }
 
-    this.img = new float[image.getWidth() * image.getHeight()][3];
-    this.pal = new float[palette.length][3];
+    this.img = new float[image.getWidth() * image.getHeight() * 3];
+    this.pal = new float[palette.length * 3];
 
     this.pw = this.platform.getCharWidth();
     this.ph = this.platform.getCharHeight();
     this.cw = image.getWidth() / pw;
     this.ch = image.getHeight() / ph;
+    this.errorReachX = (ditherMatrixOffset + pw - 1) / pw;
+    this.errorReachY = (ditherMatrixOffset + ph - 1) / ph;
 
-    for (int i = 0; i < img.length; i++) {
-      img[i] = colorspace.fromRGB(image.getRGB(i % image.getWidth(), i / image.getWidth()));
-    }
+    this.rgb = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    colorspace.fromRGB(rgb, 0, rgb.length, img, 0);
 
     for (int i = 0; i < palette.length; i++) {
-      pal[i] = colorspace.fromRGB(palette[i].getRGB());
+      System.arraycopy(colorspace.fromRGB(palette[i].getRGB()), 0, pal, i * 3, 3);
     }
   }
 
-  public BufferedImage write(OutputStream stream) throws IOException {
-    BufferedImage output = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+  /**
+   * @return the exact size of the CTIF file written by this converter, in bytes.
+   */
+  public int getDataSize() {
+    return getHeaderSize() + cw * ch * getCellSize();
+  }
 
-    stream.write('C');
-    stream.write('T');
-    stream.write('I');
-    stream.write('F');
+  int getHeaderSize() {
+    return 15 + (this.platform.getCustomColorCount() > 0 ? 3 + 16 * 3 : 3);
+  }
 
-    stream.write(1); // Header version
-    stream.write(0); // Platform variant (0 - default)
-    stream.write(this.platform.getPlatformId());
-    stream.write(this.platform.getPlatformId() >> 8); // Platform ID
-    stream.write(cw & 0xFF);
-    stream.write(cw >> 8); // Width in chars
-    stream.write(ch & 0xFF);
-    stream.write(ch >> 8); // Height in chars
-    stream.write(pw); // Char width
-    stream.write(ph); // Char height
+  int getCellSize() {
+    int quadrantLen = (pw * ph + 7) / 8;
+    if (palette.length > 2) {
+      int colorsLen = (pw * ph > 1 && palette.length > 16) ? 2 : 1;
+      return colorsLen + (pw * ph > 2 ? quadrantLen : 0);
+    } else {
+      return quadrantLen;
+    }
+  }
 
-    stream.write(palette.length > 16 ? 8 : 4); // BPP (byte)
+  /**
+   * Converts the image and writes it to the stream in a single call. The stream is
+   * flushed, but not closed.
+   */
+  public void write(OutputStream stream) throws IOException {
+    byte[] data = new byte[getDataSize()];
+    write(ByteBuffer.wrap(data));
+    stream.write(data);
+    stream.flush();
+  }
+
+  /**
+   * Converts the image and writes all of it to the channel. The channel is not closed.
+   */
+  public void write(WritableByteChannel channel) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(getDataSize());
+    write(buffer);
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * Converts the image and puts exactly {@link #getDataSize()} bytes into the buffer,
+   * starting at its position. Use {@link CtifDecoder} to render a preview of the result.
+   *
+   * @throws java.nio.BufferOverflowException if the buffer has too little space remaining
+   */
+  public void write(ByteBuffer buffer) {
+    write(buffer, encode(null));
+  }
+
+  void write(ByteBuffer buffer, Frame frame) {
+    buffer.put((byte) 'C');
+    buffer.put((byte) 'T');
+    buffer.put((byte) 'I');
+    buffer.put((byte) 'F');
+
+    buffer.put((byte) 1); // Header version
+    buffer.put((byte) 0); // Platform variant (0 - default)
+    buffer.put((byte) this.platform.getPlatformId());
+    buffer.put((byte) (this.platform.getPlatformId() >> 8)); // Platform ID
+    buffer.put((byte) (cw & 0xFF));
+    buffer.put((byte) (cw >> 8)); // Width in chars
+    buffer.put((byte) (ch & 0xFF));
+    buffer.put((byte) (ch >> 8)); // Height in chars
+    buffer.put((byte) pw); // Char width
+    buffer.put((byte) ph); // Char height
+
+    buffer.put((byte) (palette.length > 16 ? 8 : 4)); // BPP (byte)
 
     if (this.platform.getCustomColorCount() > 0) {
-      stream.write(3); // Palette entry size
-      stream.write(16);
-      stream.write(0); // Palette array size
-      for (int i = 0; i < 16; i++) {
-        stream.write(palette[i].getRGB() & 0xFF);
-        stream.write((palette[i].getRGB() >> 8) & 0xFF);
-        stream.write((palette[i].getRGB() >> 16) & 0xFF);
-      }
+      buffer.put((byte) 3); // Palette entry size
+      buffer.put((byte) 16);
+      buffer.put((byte) 0); // Palette array size
+      writePalette(buffer);
     } else {
-      stream.write(0); // Palette array size
-      stream.write(0);
-      stream.write(0); // Palette entry size
+      buffer.put((byte) 0); // Palette array size
+      buffer.put((byte) 0);
+      buffer.put((byte) 0); // Palette entry size
     }
 
-    writePixelData(stream, output);
-    stream.close();
-    return output;
+    for (int cell = 0; cell < cw * ch; cell++) {
+      writeCell(buffer, frame, cell);
+    }
+  }
+
+  /**
+   * Puts the 16 custom palette entries, 3 bytes (B, G, R) each.
+   */
+  void writePalette(ByteBuffer buffer) {
+    for (int i = 0; i < 16; i++) {
+      buffer.put((byte) (palette[i].getRGB() & 0xFF));
+      buffer.put((byte) ((palette[i].getRGB() >> 8) & 0xFF));
+      buffer.put((byte) ((palette[i].getRGB() >> 16) & 0xFF));
+    }
   }
 
-  private void addQuantError(float[][] pixelArray, int x, int y, int w, int h, float[] expected, float[] received, float mul) {
-    if (x >= 0 && y >= 0 && x < w && y < h) {
-      addQuantError(pixelArray[y * w + x], expected, received, mul);
+  /**
+   * Finds the best (background, foreground, quadrant) choice for every cell.
+   *
+   * @param previous the previous frame of an animation, or null. If it was encoded with the
+   *                 same settings and palette, cells whose pixels (and, with error diffusion,
+   *                 incoming error) are unchanged are copied from it.
+   */
+  public Frame encode(Frame previous) {
+    final int quadrantLen = (pw * ph + 7) / 8;
+    final int[] cellColors = new int[cw * ch * 2];
+    final int[] cellQuadrants = new int[cw * ch * quadrantLen];
+    final float[] cellErrors = ditherMode == DitherMode.ERROR
+        ? new float[cw * ch * (pw + ditherMatrixOffset * 2) * (ph + ditherMatrixOffset * 2) * 3]
+        : null;
+
+    boolean[] dirty = null;
+    int encodedCells = cw * ch;
+    if (previous != null && canReuse(previous.converter)) {
+      dirty = findDirtyCells(previous.converter);
+      encodedCells = 0;
+      for (boolean d : dirty) {
+        if (d) encodedCells++;
+      }
     }
+
+    encodeCells(cellColors, cellQuadrants, cellErrors, dirty != null ? previous : null, dirty);
+    return new Frame(this, cellColors, cellQuadrants, cellErrors, encodedCells);
+  }
+
+  boolean hasSamePalette(UglyConverter other) {
+    return Arrays.equals(other.palette, palette);
+  }
+
+  private boolean canReuse(UglyConverter other) {
+    return other.image.getWidth() == image.getWidth()
+        && other.image.getHeight() == image.getHeight()
+        && other.platform == platform
+        && other.colorspace == colorspace
+        && other.ditherMode == ditherMode
+        && Arrays.equals(other.ditherMatrix, ditherMatrix)
+        && other.optimizationLevel == optimizationLevel
+        && other.cellSearch == cellSearch
+        && hasSamePalette(other);
   }
 
-  private static void addQuantError(float[] target, float[] expected, float[] received, float mul) {
-    if (mul != 0.0f) {
-      for (int i = 0; i < target.length; i++) {
-        target[i] += (expected[i] - received[i]) * mul;
+  /**
+   * @return the cells whose result may differ from the one in {@code other}: those whose
+   * pixels changed and, with error diffusion, those receiving error from such a cell.
+   */
+  private boolean[] findDirtyCells(UglyConverter other) {
+    int w = image.getWidth();
+    boolean[] dirty = new boolean[cw * ch];
+    for (int cy = 0; cy < ch; cy++) {
+      for (int cx = 0; cx < cw; cx++) {
+        boolean d = false;
+        for (int py = 0; py < ph && !d; py++) {
+          int o = (cy * ph + py) * w + cx * pw;
+          d = !Arrays.equals(rgb, o, o + pw, other.rgb, o, o + pw);
+        }
+        if (!d && ditherMode == DitherMode.ERROR) {
+          // the same neighbourhood gatherError reads from.
+          for (int sy = Math.max(0, cy - errorReachY); sy <= cy && !d; sy++) {
+            for (int sx = Math.max(0, cx - errorReachX); sx <= Math.min(cw - 1, cx + errorReachX); sx++) {
+              if (sy == cy && sx >= cx) break;
+              if (dirty[sy * cw + sx]) {
+                d = true;
+                break;
+              }
+            }
+          }
+        }
+        dirty[cy * cw + cx] = d;
       }
     }
+    return dirty;
   }
 
-  private void writePixelData(final OutputStream stream, final BufferedImage output) throws IOException {
-    int ew = (pw + ditherMatrixOffset * 2);
-    int eh = (ph + ditherMatrixOffset * 2);
+  /**
+   * @return how many palette colors the pair search of a cell considers at the given
+   * optimization level; -O0 always searches the whole palette.
+   */
+  private static int getCandidateLimit(int optimizationLevel, int paletteLength) {
+    return switch (optimizationLevel) {
+      case 0 -> paletteLength;
+      case 1 -> Math.min(paletteLength, 20);
+      case 2 -> Math.min(paletteLength, 14);
+      case 3 -> Math.min(paletteLength, 10);
+      default -> Math.min(paletteLength, 6);
+    };
+  }
 
-    int quadrantLen = (pw * ph + 7) / 8;
+  /**
+   * @return the squared distance from the color at {@code color[offset]} to the segment
+   * between the two colors in {@code segment}.
+   */
+  private static double getSegmentDistanceSq(float[] segment, float[] color, int offset) {
+    double d0 = segment[3] - segment[0], d1 = segment[4] - segment[1], d2 = segment[5] - segment[2];
+    double v0 = color[offset] - segment[0], v1 = color[offset + 1] - segment[1], v2 = color[offset + 2] - segment[2];
+    double lenSq = d0 * d0 + d1 * d1 + d2 * d2;
+    double t = lenSq > 0 ? Math.max(0, Math.min(1, (v0 * d0 + v1 * d1 + v2 * d2) / lenSq)) : 0;
+    double e0 = v0 - t * d0, e1 = v1 - t * d1, e2 = v2 - t * d2;
+    return e0 * e0 + e1 * e1 + e2 * e2;
+  }
 
-    float[][] pixels = new float[pw * ph][];
-    float[][] bcea = new float[ew * eh][3];
-    float[][] tPixels = new float[pixels.length][3];
-    float[][] errors = new float[ew * eh][3];
-    int[] bcq = new int[quadrantLen];
-    int[] cq = new int[quadrantLen];
+  private static void addQuantError(float[] pixelArray, int x, int y, int w, int h, float[] expected, int eo, float[] received, int ro, float mul) {
+    if (mul != 0.0f && x >= 0 && y >= 0 && x < w && y < h) {
+      int o = (y * w + x) * 3;
+      for (int i = 0; i < 3; i++) {
+        pixelArray[o + i] += (expected[eo + i] - received[ro + i]) * mul;
+      }
+    }
+  }
 
-    float[] colA = new float[3];
+  void writeCell(ByteBuffer buffer, Frame frame, int cell) {
+    int quadrantLen = (pw * ph + 7) / 8;
+    int bgIndex = frame.cellColors[cell * 2];
+    int fgIndex = frame.cellColors[cell * 2 + 1];
+    int quadrant = cell * quadrantLen;
+
+    if (palette.length > 2) {
+      if (pw * ph == 1) {
+        buffer.put((byte) fgIndex);
+      } else {
+        if (palette.length > 16) {
+          buffer.put((byte) bgIndex);
+          buffer.put((byte) fgIndex);
+        } else {
+          buffer.put((byte) (bgIndex << 4 | fgIndex));
+        }
+      }
 
-    boolean usePalMap = this.optimizationLevel > 0
-        && this.platform instanceof PlatformOpenComputers
-        && ((PlatformOpenComputers) this.platform).getScreen() == PlatformOpenComputers.Screen.TIER_3;
+      if (pw * ph > 2) {
+        for (int i = 0; i < quadrantLen; i++)
+          buffer.put((byte) frame.cellQuadrants[quadrant + i]);
+      }
+    } else {
+      for (int i = 0; i < quadrantLen; i++)
+        buffer.put((byte) frame.cellQuadrants[quadrant + i]);
+    }
+  }
 
-    int[] palMap = new int[palette.length];
-    int palMapLength;
-    for (int i = 0; i < 16; i++)
-      palMap[i] = i;
-    int t3OffRed = this.optimizationLevel <= 1 ? 3 : (this.optimizationLevel == 2 ? 2 : 1);
-    int t3OffGreen = this.optimizationLevel <= 1 ? 3 : (this.optimizationLevel <= 3 ? 2 : 1);
-    int t3OffBlue = this.optimizationLevel <= 1 ? 2 : 1;
+  /**
+   * Finds the best (background, foreground, quadrant) choice for every cell.
+   * Rows of cells are spread across {@code threads} workers. With error diffusion,
+   * every cell depends on the quantization error of its upper and left neighbours,
+   * so rows are additionally kept a few cells behind the row above.
+   */
+  private void encodeCells(final int[] cellColors, final int[] cellQuadrants, final float[] cellErrors, final Frame previous, final boolean[] dirty) {
+    // only the mask search and the -O3 shortcut for undithered cells look up nearest colors.
+    final NearestColorIndex nearestColors = usesMasks() || (ditherMode == DitherMode.NONE && optimizationLevel >= 3)
+        ? NearestColorIndex.get(palette, colorspace)
+        : null;
+
+    if (threads <= 1 || ch <= 1) {
+      CellEncoder encoder = new CellEncoder(cellColors, cellQuadrants, cellErrors, previous, dirty, nearestColors);
+      for (int cy = 0; cy < ch; cy++) {
+        for (int cx = 0; cx < cw; cx++) {
+          encoder.encode(cx, cy);
+        }
+      }
+      return;
+    }
 
-    for (int cy = 0; cy < ch; cy++) {
-      for (int cx = 0; cx < cw; cx++) {
-        for (int py = 0; py < ph; py++) {
-          for (int px = 0; px < pw; px++) {
-            pixels[py * pw + px] = img[(cy * ph + py) * image.getWidth() + cx * pw + px];
+    // with error diffusion, a cell may only start once the row above it has
+    // committed every cell that can diffuse error into it (a wavefront).
+    final AtomicIntegerArray rowProgress = cellErrors != null ? new AtomicIntegerArray(ch) : null;
+    AtomicInteger nextRow = new AtomicInteger();
+    int workerCount = Math.min(threads, ch);
+    ExecutorService executorService = Executors.newFixedThreadPool(workerCount);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int i = 0; i < workerCount; i++) {
+      futures.add(executorService.submit(() -> {
+        CellEncoder encoder = new CellEncoder(cellColors, cellQuadrants, cellErrors, previous, dirty, nearestColors);
+        int cy;
+        while ((cy = nextRow.getAndIncrement()) < ch) {
+          for (int cx = 0; cx < cw; cx++) {
+            if (rowProgress != null) {
+              if (cy > 0) {
+                awaitProgress(rowProgress, cy - 1, Math.min(cw, cx + errorReachX + 1));
+              }
+              encoder.encode(cx, cy);
+              rowProgress.set(cy, cx + 1);
+            } else {
+              encoder.encode(cx, cy);
+            }
           }
         }
+      }));
+    }
+    executorService.shutdown();
+    awaitAll(executorService, futures);
+  }
+
+  private boolean usesMasks() {
+    return cellSearch == CellSearch.MASKS
+        && ditherMode == DitherMode.NONE
+        && pw * ph <= CellSearch.MAX_MASK_PIXELS;
+  }
+
+  private static void awaitProgress(AtomicIntegerArray rowProgress, int row, int cells) {
+    int spins = 0;
+    while (rowProgress.get(row) < cells) {
+      if (Thread.currentThread().isInterrupted()) {
+        throw new CancellationException();
+      }
+      // cells take microseconds, so spin briefly before giving up the core.
+      if (++spins < 1000) {
+        Thread.onSpinWait();
+      } else {
+        Thread.yield();
+      }
+    }
+  }
+
+  private static void awaitAll(ExecutorService executorService, List<Future<?>> futures) {
+    try {
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      executorService.shutdownNow();
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      // wake up workers that might be waiting on the failed one.
+      executorService.shutdownNow();
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /**
+   * Per-worker scratch state for the cell search. Results are stored into the
+   * shared cell arrays, so that they can be serialized in order afterwards.
+   */
+  private class CellEncoder {
+    private final int[] cellColors;
+    private final int[] cellQuadrants;
+    private final float[] cellErrors;
+    private final Frame previous;
+    private final boolean[] dirty;
+    private final NearestColorIndex.Search nearestColors;
+
+    private final int ew = (pw + ditherMatrixOffset * 2);
+    private final int eh = (ph + ditherMatrixOffset * 2);
+
+    private final int quadrantLen = (pw * ph + 7) / 8;
+
+    private final int pixelCount = pw * ph;
+    private final float[] pixels = new float[pixelCount * 3];
+    private final float[] bcea = new float[ew * eh * 3];
+    private final float[] tPixels = new float[pixelCount * 3];
+    private final float[] errors = new float[ew * eh * 3];
+    private final int[] bcq = new int[quadrantLen];
+    private final int[] cq = new int[quadrantLen];
+
+    private final float[] colA = new float[3];
+
+    private final boolean useMasks = usesMasks();
+    private final float[] groupMeans = new float[6];
+    private int maskBg, maskFg;
+
+    // palette entries the pair search is restricted to, in ascending order.
+    private final int candidateLimit = getCandidateLimit(optimizationLevel, palette.length);
+    private final int[] candidates = new int[palette.length];
+    private final double[] candidateScores = new double[candidateLimit];
+    private final float[] segment = new float[6];
+
+    // without dithering, every pixel's distance to every candidate, one row per candidate.
+    private final float[] candidateDistances = ditherMode == DitherMode.NONE ? new float[palette.length * pixelCount] : null;
+    private final float[] pixels0 = new float[pixelCount];
+    private final float[] pixels1 = new float[pixelCount];
+    private final float[] pixels2 = new float[pixelCount];
+
+    CellEncoder(int[] cellColors, int[] cellQuadrants, float[] cellErrors, Frame previous, boolean[] dirty, NearestColorIndex nearestColors) {
+      this.cellColors = cellColors;
+      this.cellQuadrants = cellQuadrants;
+      this.cellErrors = cellErrors;
+      this.previous = previous;
+      this.dirty = dirty;
+      this.nearestColors = nearestColors != null ? nearestColors.newSearch() : null;
+      for (int i = 0; i < palette.length; i++)
+        candidates[i] = i;
+    }
+
+    /**
+     * Restricts the pair search to the {@code candidateLimit} palette colors nearest to
+     * the cell's color extent: the segment between its two extreme pixels along the
+     * principal axis of the pixels' colors.
+     *
+     * @return the amount of candidates, stored in {@code candidates}
+     */
+    private int selectCandidates() {
+      if (candidateLimit >= palette.length) {
+        return palette.length;
+      }
 
-        int bci1 = 0, bci2 = 0;
-        double bcerr = Double.MAX_VALUE;
+      // mean and covariance of the cell's pixels.
+      double m0 = 0, m1 = 0, m2 = 0;
+      for (int i = 0; i < pixelCount; i++) {
+        m0 += pixels[i * 3];
+        m1 += pixels[i * 3 + 1];
+        m2 += pixels[i * 3 + 2];
+      }
+      m0 /= pixelCount;
+      m1 /= pixelCount;
+      m2 /= pixelCount;
+      double c00 = 0, c01 = 0, c02 = 0, c11 = 0, c12 = 0, c22 = 0;
+      for (int i = 0; i < pixelCount; i++) {
+        double d0 = pixels[i * 3] - m0, d1 = pixels[i * 3 + 1] - m1, d2 = pixels[i * 3 + 2] - m2;
+        c00 += d0 * d0;
+        c01 += d0 * d1;
+        c02 += d0 * d2;
+        c11 += d1 * d1;
+        c12 += d1 * d2;
+        c22 += d2 * d2;
+      }
+
+      // principal axis, by power iteration.
+      double a0 = 1, a1 = 1, a2 = 1;
+      for (int it = 0; it < 8; it++) {
+        double n0 = c00 * a0 + c01 * a1 + c02 * a2;
+        double n1 = c01 * a0 + c11 * a1 + c12 * a2;
+        double n2 = c02 * a0 + c12 * a1 + c22 * a2;
+        double len = Math.sqrt(n0 * n0 + n1 * n1 + n2 * n2);
+        if (len == 0) break;
+        a0 = n0 / len;
+        a1 = n1 / len;
+        a2 = n2 / len;
+      }
+
+      int minI = 0, maxI = 0;
+      double minP = Double.MAX_VALUE, maxP = -Double.MAX_VALUE;
+      for (int i = 0; i < pixelCount; i++) {
+        double proj = pixels[i * 3] * a0 + pixels[i * 3 + 1] * a1 + pixels[i * 3 + 2] * a2;
+        if (proj < minP) {
+          minP = proj;
+          minI = i;
+        }
+        if (proj > maxP) {
+          maxP = proj;
+          maxI = i;
+        }
+      }
+      System.arraycopy(pixels, minI * 3, segment, 0, 3);
+      System.arraycopy(pixels, maxI * 3, segment, 3, 3);
+
+      // keep the best candidateLimit colors by distance to the segment, by insertion.
+      int count = 0;
+      for (int c = 0; c < palette.length; c++) {
+        double score = getSegmentDistanceSq(segment, pal, c * 3);
+        if (count == candidateLimit && score >= candidateScores[count - 1]) {
+          continue;
+        }
+        int pos = count == candidateLimit ? count - 1 : count++;
+        while (pos > 0 && candidateScores[pos - 1] > score) {
+          candidateScores[pos] = candidateScores[pos - 1];
+          candidates[pos] = candidates[pos - 1];
+          pos--;
+        }
+        candidateScores[pos] = score;
+        candidates[pos] = c;
+      }
+      // the pair search breaks ties by palette order.
+      Arrays.sort(candidates, 0, count);
+      return count;
+    }
 
-        if (usePalMap) {
-          palMapLength = 16;
-          int[] colorsUsed = new int[palette.length];
+    /**
+     * Adds the quantization error diffused into this cell by the cells before it.
+     * Contributions are applied in raster order of their source cells, which keeps
+     * the floating-point sums identical no matter which order the cells finished in.
+     */
+    private void gatherError(int cx, int cy) {
+      for (int sy = Math.max(0, cy - errorReachY); sy <= cy; sy++) {
+        for (int sx = Math.max(0, cx - errorReachX); sx <= Math.min(cw - 1, cx + errorReachX); sx++) {
+          if (sy == cy && sx >= cx) break;
+          int so = (sy * cw + sx) * ew * eh;
           for (int py = 0; py < ph; py++) {
+            int ey = cy * ph + py - sy * ph + ditherMatrixOffset;
+            if (ey < 0 || ey >= eh) continue;
             for (int px = 0; px < pw; px++) {
-              int rgb = image.getRGB(cx * pw + px, cy * ph + py);
-              int red = (((rgb >> 16) & 0xFF) * 6 / 256);
-              int green = (((rgb >> 8) & 0xFF) * 8 / 256);
-              int blue = ((rgb & 0xFF) * 5 / 256);
-              for (int rr = red - t3OffRed; rr <= red + t3OffRed; rr++)
-                for (int rg = green - t3OffGreen; rg <= green + t3OffGreen; rg++)
-                  for (int rb = blue - t3OffBlue; rb <= blue + t3OffBlue; rb++)
-                    if (rr >= 0 && rg >= 0 && rb >= 0 && rr < 6 && rg < 8 && rb < 5) {
-                      int col = 16 + rr * 40 + rg * 5 + rb;
-                      if (colorsUsed[col] == 0) {
-                        palMap[palMapLength++] = col;
-                        colorsUsed[col] = 1;
-                      }
-                    }
+              int ex = cx * pw + px - sx * pw + ditherMatrixOffset;
+              if (ex < 0 || ex >= ew) continue;
+              int o = (py * pw + px) * 3;
+              int eo = (so + ey * ew + ex) * 3;
+              for (int i = 0; i < 3; i++) {
+                pixels[o + i] += cellErrors[eo + i];
+              }
             }
           }
-        } else {
-          palMapLength = palette.length;
         }
+      }
+    }
 
-        boolean bcqFound = false;
+    /**
+     * Exact search for {@link CellSearch#MASKS}. For a fixed foreground mask, the squared
+     * error of each group of pixels is n * |mean - c|^2 plus a constant, so the best color
+     * for the group is the palette entry nearest to its mean; trying every mask therefore
+     * finds the optimal pair. Stores the pair in maskBg/maskFg and the quadrant in bcq.
+     */
+    private void searchMasks() {
+      double bestErr = Double.MAX_VALUE;
+      // a mask and its complement describe the same split, so keep the last pixel in the background.
+      int masks = 1 << (pixelCount - 1);
+      for (int mask = 0; mask < masks; mask++) {
+        Arrays.fill(groupMeans, 0);
+        int fgCount = 0;
+        for (int i = 0; i < pixelCount; i++) {
+          int g = ((mask >> i) & 1) * 3;
+          groupMeans[g] += pixels[i * 3];
+          groupMeans[g + 1] += pixels[i * 3 + 1];
+          groupMeans[g + 2] += pixels[i * 3 + 2];
+          fgCount += (mask >> i) & 1;
+        }
+        int bgCount = pixelCount - fgCount;
+        for (int k = 0; k < 3; k++) {
+          groupMeans[k] /= bgCount;
+          if (fgCount > 0) groupMeans[3 + k] /= fgCount;
+        }
 
-        if (ditherMode == DitherMode.NONE && this.optimizationLevel >= 3) {
-          int[] colors = new int[pixels.length];
-          int colorCount = 0;
-          boolean[] uColors = new boolean[palette.length];
+        int bg = nearestColors.nearest(groupMeans, 0);
+        int fg = fgCount > 0 ? nearestColors.nearest(groupMeans, 3) : bg;
 
-          for (float[] pixel : pixels) {
-            double bestDist = Double.MAX_VALUE;
-            int bestCol = 0;
+        double err = 0;
+        for (int i = 0; i < pixelCount; i++) {
+          err += Util.getColorDistanceSq(pixels, i * 3, pal, (((mask >> i) & 1) != 0 ? fg : bg) * 3);
+          if (err >= bestErr) break;
+        }
+        if (err < bestErr) {
+          bestErr = err;
+          maskBg = bg;
+          maskFg = fg;
+          if (err == 0) break;
+        }
+      }
+      // a cell of one color still needs two: with a 2-color palette, only the mask is written
+      // and readers assume the background is 0 and the foreground is 1.
+      if (maskFg == maskBg) {
+        maskFg = maskBg == 0 ? 1 : 0;
+      }
 
-            for (int cim1 = 0; cim1 < palMapLength; cim1++) {
-              int ci1 = usePalMap ? palMap[cim1] : cim1;
-              float[] col1 = pal[ci1];
-              double dist = Util.getColorDistanceSq(col1, pixel);
-              if (dist < bestDist) {
-                bestCol = ci1;
-                bestDist = dist;
-              }
-            }
+      // the best mask for the chosen pair is each pixel's nearer color.
+      Arrays.fill(bcq, 0);
+      for (int i = 0; i < pixelCount; i++) {
+        int pos = (pw * ph - 1 - i);
+        if (Util.getColorDistanceSq(pixels, i * 3, pal, maskFg * 3) < Util.getColorDistanceSq(pixels, i * 3, pal, maskBg * 3)) {
+          bcq[pos >> 3] |= (1 << (pos & 7));
+        }
+      }
+    }
 
-            if (!uColors[bestCol]) {
-              uColors[bestCol] = true;
-              colors[colorCount++] = bestCol;
-            }
-          }
+    private void computeCandidateDistances(int candidateCount) {
+      for (int i = 0; i < pixelCount; i++) {
+        pixels0[i] = pixels[i * 3];
+        pixels1[i] = pixels[i * 3 + 1];
+        pixels2[i] = pixels[i * 3 + 2];
+      }
+      for (int cim = 0; cim < candidateCount; cim++) {
+        int c = candidates[cim] * 3;
+        kernels.distancesSq(pixels0, pixels1, pixels2, pixelCount, pal[c], pal[c + 1], pal[c + 2], candidateDistances, cim * pixelCount);
+      }
+    }
 
-          if (colorCount <= 2) {
-            bci1 = colors[0];
-            bci2 = colors[1];
+    void encode(int cx, int cy) {
+      int cell = cy * cw + cx;
+      if (dirty != null && !dirty[cell]) {
+        System.arraycopy(previous.cellColors, cell * 2, cellColors, cell * 2, 2);
+        System.arraycopy(previous.cellQuadrants, cell * quadrantLen, cellQuadrants, cell * quadrantLen, quadrantLen);
+        if (cellErrors != null) {
+          System.arraycopy(previous.cellErrors, cell * bcea.length, cellErrors, cell * bcea.length, bcea.length);
+        }
+        return;
+      }
 
-            Arrays.fill(bcq, 0);
+      for (int py = 0; py < ph; py++) {
+        System.arraycopy(img, ((cy * ph + py) * image.getWidth() + cx * pw) * 3, pixels, py * pw * 3, pw * 3);
+      }
+      if (ditherMode == DitherMode.ERROR) {
+        gatherError(cx, cy);
+      }
 
-            for (int i = 0; i < pixels.length; i++) {
-              int pos = (pw * ph - 1 - i);
-              double dist0 = Util.getColorDistanceSq(pal[bci1], pixels[i]);
-              double dist1 = Util.getColorDistanceSq(pal[bci2], pixels[i]);
-              if (dist1 < dist0) {
-                bcq[pos >> 3] |= (1 << (pos & 7));
-              }
-            }
+      int bci1 = 0, bci2 = 0;
+      double bcerr = Double.MAX_VALUE;
+
+      boolean bcqFound = false;
+
+      if (useMasks) {
+        searchMasks();
+        bci1 = maskBg;
+        bci2 = maskFg;
+        bcqFound = true;
+      }
 
-            bcqFound = true;
+      if (!bcqFound && ditherMode == DitherMode.NONE && optimizationLevel >= 3) {
+        int[] colors = new int[pixelCount];
+        int colorCount = 0;
+        boolean[] uColors = new boolean[palette.length];
+
+        for (int i = 0; i < pixelCount; i++) {
+          int bestCol = nearestColors.nearest(pixels, i * 3);
+          if (!uColors[bestCol]) {
+            uColors[bestCol] = true;
+            colors[colorCount++] = bestCol;
           }
         }
 
-        if (!bcqFound) {
-          for (int cim1 = 1; cim1 < palMapLength; cim1++) {
-            if (bcerr == 0) break;
-            int ci1 = usePalMap ? palMap[cim1] : cim1;
-            float[] col1 = pal[ci1];
+        if (colorCount <= 2) {
+          bci1 = colors[0];
+          bci2 = colors[1];
 
-            for (int cim2 = (this.platform instanceof PlatformZXSpectrum) ? (cim1 >= 8 ? 8 : 0) : 0; cim2 < cim1; cim2++) {
-              if (bcerr == 0) break;
-              int ci2 = usePalMap ? palMap[cim2] : cim2;
-              float[] col2 = pal[ci2];
-              double cerr = 0;
+          Arrays.fill(bcq, 0);
 
-              for (int i = 0; i < quadrantLen; i++) {
-                cq[i] = 0;
-              }
+          for (int i = 0; i < pixelCount; i++) {
+            int pos = (pw * ph - 1 - i);
+            double dist0 = Util.getColorDistanceSq(pal, bci1 * 3, pixels, i * 3);
+            double dist1 = Util.getColorDistanceSq(pal, bci2 * 3, pixels, i * 3);
+            if (dist1 < dist0) {
+              bcq[pos >> 3] |= (1 << (pos & 7));
+            }
+          }
 
-              if (ditherMode == DitherMode.NONE) {
-                for (int i = 0; i < pixels.length; i++) {
-                  float[] col = pixels[i];
-                  double cerr1 = Util.getColorDistanceSq(col, col1);
-                  double cerr2 = Util.getColorDistanceSq(col, col2);
-                  if (cerr2 < cerr1) {
-                    int pos = (pw * ph - 1 - i);
-                    cq[pos >> 3] |= (1 << (pos & 7));
-                    cerr += cerr2;
-                  } else {
-                    cerr += cerr1;
-                  }
+          bcqFound = true;
+        }
+      }
 
-                  if (cerr >= bcerr)
-                    break;
-                }
-              } else if (ditherMode == DitherMode.ERROR) {
-                for (int i = 0; i < pixels.length; i++) {
-                  tPixels[i][0] = pixels[i][0];
-                  tPixels[i][1] = pixels[i][1];
-                  tPixels[i][2] = pixels[i][2];
-                }
+      if (!bcqFound) {
+        int candidateCount = selectCandidates();
+        boolean splitPalette = platform instanceof PlatformZXSpectrum;
+        if (ditherMode == DitherMode.NONE) {
+          computeCandidateDistances(candidateCount);
+        }
+        for (int cim1 = 1; cim1 < candidateCount; cim1++) {
+          if (bcerr == 0) break;
+          int ci1 = candidates[cim1];
+          int col1 = ci1 * 3;
+
+          for (int cim2 = 0; cim2 < cim1; cim2++) {
+            if (bcerr == 0) break;
+            int ci2 = candidates[cim2];
+            // ZX Spectrum cells can't mix bright and normal colors.
+            if (splitPalette && (ci1 >= 8) != (ci2 >= 8)) continue;
+            int col2 = ci2 * 3;
+            double cerr = 0;
+
+            for (int i = 0; i < quadrantLen; i++) {
+              cq[i] = 0;
+            }
 
-                for (int i = 0; i < errors.length; i++) {
-                  errors[i][0] = 0;
-                  errors[i][1] = 0;
-                  errors[i][2] = 0;
+            if (ditherMode == DitherMode.NONE) {
+              int row1 = cim1 * pixelCount;
+              int row2 = cim2 * pixelCount;
+              for (int i = 0; i < pixelCount; i++) {
+                double cerr1 = candidateDistances[row1 + i];
+                double cerr2 = candidateDistances[row2 + i];
+                if (cerr2 < cerr1) {
+                  int pos = (pw * ph - 1 - i);
+                  cq[pos >> 3] |= (1 << (pos & 7));
+                  cerr += cerr2;
+                } else {
+                  cerr += cerr1;
                 }
 
-                for (int i = 0; i < tPixels.length; i++) {
-                  float[] col = tPixels[i];
-                  float[] colR;
-                  double cerr1 = Util.getColorDistanceSq(col, col1);
-                  double cerr2 = Util.getColorDistanceSq(col, col2);
-                  if (cerr2 < cerr1) {
-                    int pos = (pw * ph - 1 - i);
-                    cq[pos >> 3] |= (1 << (pos & 7));
-                    cerr += cerr2;
-                    colR = col2;
-                  } else {
-                    cerr += cerr1;
-                    colR = col1;
-                  }
+                if (cerr >= bcerr)
+                  break;
+              }
+            } else if (ditherMode == DitherMode.ERROR) {
+              System.arraycopy(pixels, 0, tPixels, 0, tPixels.length);
+              Arrays.fill(errors, 0);
+
+              for (int i = 0; i < pixelCount; i++) {
+                int col = i * 3;
+                int colR;
+                double cerr1 = Util.getColorDistanceSq(tPixels, col, pal, col1);
+                double cerr2 = Util.getColorDistanceSq(tPixels, col, pal, col2);
+                if (cerr2 < cerr1) {
+                  int pos = (pw * ph - 1 - i);
+                  cq[pos >> 3] |= (1 << (pos & 7));
+                  cerr += cerr2;
+                  colR = col2;
+                } else {
+                  cerr += cerr1;
+                  colR = col1;
+                }
 
-                  if (cerr >= bcerr)
-                    break;
+                if (cerr >= bcerr)
+                  break;
 
-                  int qx = (i % pw);
-                  int qy = (i / pw);
+                int qx = (i % pw);
+                int qy = (i / pw);
 
-                  int ip = ditherMatrixSize * ditherMatrixOffset;
-                  for (int iy = 0; iy < ditherMatrixSize - ditherMatrixOffset; iy++) {
-                    for (int ix = -ditherMatrixOffset; ix < ditherMatrixSize - ditherMatrixOffset; ix++) {
-                      addQuantError(tPixels, qx + ix, qy + iy, pw, ph, col, colR, ditherMatrix[ip]);
-                      addQuantError(errors, qx + ix + ditherMatrixOffset, qy + iy + ditherMatrixOffset, ew, eh, col, colR, ditherMatrix[ip]);
-                      ip++;
-                    }
-                  }
-                }
-              } else {
-                // http://bisqwit.iki.fi/story/howto/dither/jy/
-
-                cerr += Util.getColorDistanceSq(col1, col2) * 0.1 * pixels.length;
-
-                for (int i = 0; i < pixels.length; i++) {
-                  float[] col = pixels[i];
-                  int qx = (i % pw);
-                  int qy = (i / pw);
-
-                  float jf =
-                      (col[0] * col1[0] - col[0] * col2[0] - col1[0] * col2[0] + col2[0] * col2[0] +
-                          col[1] * col1[1] - col[1] * col2[1] - col1[1] * col2[1] + col2[1] * col2[1] +
-                          col[2] * col1[2] - col[2] * col2[2] - col1[2] * col2[2] + col2[2] * col2[2]) /
-                          ((col1[0] - col2[0]) * (col1[0] - col2[0]) +
-                              (col1[1] - col2[1]) * (col1[1] - col2[1]) +
-                              (col1[2] - col2[2]) * (col1[2] - col2[2]));
-                  int birat = ditherMax - Math.round(jf * ditherMax);
-                  if (birat < 0) birat = 0;
-                  else if (birat > ditherMax) birat = ditherMax;
-
-                  colA[0] = (col2[0] * birat + col1[0] * (ditherMax - birat)) / ditherMax;
-                  colA[1] = (col2[1] * birat + col1[1] * (ditherMax - birat)) / ditherMax;
-                  colA[2] = (col2[2] * birat + col1[2] * (ditherMax - birat)) / ditherMax;
-                  cerr += Util.getColorDistanceSq(col, colA);
-
-                  if (cerr >= bcerr)
-                    break;
-
-                  int threshold = (int) ditherMatrix[((cy * ph + qy) % ditherMatrixSize) * ditherMatrixSize + ((cx * pw + qx) % ditherMatrixSize)];
-                  if (threshold < birat) {
-                    int pos = (pw * ph - 1 - i);
-                    cq[pos >> 3] |= (1 << (pos & 7));
+                int ip = ditherMatrixSize * ditherMatrixOffset;
+                for (int iy = 0; iy < ditherMatrixSize - ditherMatrixOffset; iy++) {
+                  for (int ix = -ditherMatrixOffset; ix < ditherMatrixSize - ditherMatrixOffset; ix++) {
+                    addQuantError(tPixels, qx + ix, qy + iy, pw, ph, tPixels, col, pal, colR, ditherMatrix[ip]);
+                    addQuantError(errors, qx + ix + ditherMatrixOffset, qy + iy + ditherMatrixOffset, ew, eh, tPixels, col, pal, colR, ditherMatrix[ip]);
+                    ip++;
                   }
                 }
               }
-
-              if (cerr < bcerr) {
-                bci1 = ci1;
-                bci2 = ci2;
-                bcerr = cerr;
-                if (ditherMode == DitherMode.ERROR) {
-                  for (int i = 0; i < errors.length; i++) {
-                    bcea[i][0] = errors[i][0];
-                    bcea[i][1] = errors[i][1];
-                    bcea[i][2] = errors[i][2];
-                  }
+            } else {
+              // http://bisqwit.iki.fi/story/howto/dither/jy/
+
+              cerr += Util.getColorDistanceSq(pal, col1, pal, col2) * 0.1 * pixelCount;
+
+              float c10 = pal[col1], c11 = pal[col1 + 1], c12 = pal[col1 + 2];
+              float c20 = pal[col2], c21 = pal[col2 + 1], c22 = pal[col2 + 2];
+
+              for (int i = 0; i < pixelCount; i++) {
+                int col = i * 3;
+                float p0 = pixels[col], p1 = pixels[col + 1], p2 = pixels[col + 2];
+                int qx = (i % pw);
+                int qy = (i / pw);
+
+                float jf =
+                    (p0 * c10 - p0 * c20 - c10 * c20 + c20 * c20 +
+                        p1 * c11 - p1 * c21 - c11 * c21 + c21 * c21 +
+                        p2 * c12 - p2 * c22 - c12 * c22 + c22 * c22) /
+                        ((c10 - c20) * (c10 - c20) +
+                            (c11 - c21) * (c11 - c21) +
+                            (c12 - c22) * (c12 - c22));
+                int birat = ditherMax - Math.round(jf * ditherMax);
+                if (birat < 0) birat = 0;
+                else if (birat > ditherMax) birat = ditherMax;
+
+                colA[0] = (c20 * birat + c10 * (ditherMax - birat)) / ditherMax;
+                colA[1] = (c21 * birat + c11 * (ditherMax - birat)) / ditherMax;
+                colA[2] = (c22 * birat + c12 * (ditherMax - birat)) / ditherMax;
+                cerr += Util.getColorDistanceSq(pixels, col, colA, 0);
+
+                if (cerr >= bcerr)
+                  break;
+
+                int threshold = (int) ditherMatrix[((cy * ph + qy) % ditherMatrixSize) * ditherMatrixSize + ((cx * pw + qx) % ditherMatrixSize)];
+                if (threshold < birat) {
+                  int pos = (pw * ph - 1 - i);
+                  cq[pos >> 3] |= (1 << (pos & 7));
                 }
-                System.arraycopy(cq, 0, bcq, 0, quadrantLen);
               }
             }
-          }
 
-          if (ditherMode == DitherMode.ERROR) {
-            for (int iy = 0; iy < eh; iy++) {
-              int ry = cy * ph + iy - ditherMatrixOffset;
-              if (ry >= 0 && ry < ch * ph) {
-                for (int ix = 0; ix < ew; ix++) {
-                  int rx = cx * pw + ix - ditherMatrixOffset;
-                  if (rx >= 0 && rx < cw * pw) {
-                    for (int i = 0; i < 3; i++) {
-                      img[ry * cw * pw + rx][i] += bcea[iy * ew + ix][i];
-                    }
-                  }
-                }
+            if (cerr < bcerr) {
+              bci1 = ci1;
+              bci2 = ci2;
+              bcerr = cerr;
+              if (ditherMode == DitherMode.ERROR) {
+                System.arraycopy(errors, 0, bcea, 0, errors.length);
               }
+              System.arraycopy(cq, 0, bcq, 0, quadrantLen);
             }
           }
         }
 
-        int[] quadrant = bcq;
-        int bgIndex = bci1;
-        int fgIndex = bci2;
-        if (bgIndex == fgIndex) {
-          for (int i = 0; i < quadrantLen; i++) quadrant[i] = 0;
+        if (ditherMode == DitherMode.ERROR) {
+          System.arraycopy(bcea, 0, cellErrors, (cy * cw + cx) * bcea.length, bcea.length);
         }
+      }
 
-        if (this.platform instanceof PlatformComputerCraft) {
-          if ((quadrant[0] & 0x01) != 0) {
-            int t = fgIndex;
-            fgIndex = bgIndex;
-            bgIndex = t;
-            quadrant[0] ^= 0x3F;
-          }
-        } else if (this.platform instanceof PlatformOpenComputers && pw * ph > 2) {
-          if (bgIndex > fgIndex) {
-            int t = fgIndex;
-            fgIndex = bgIndex;
-            bgIndex = t;
-            quadrant[0] ^= (1 << (pw * ph)) - 1;
-          }
-        }
+      int[] quadrant = bcq;
+      int bgIndex = bci1;
+      int fgIndex = bci2;
+      if (bgIndex == fgIndex) {
+        for (int i = 0; i < quadrantLen; i++) quadrant[i] = 0;
+      }
 
-        if (pw * ph == 2 && quadrant[0] == 1) {
+      if (platform instanceof PlatformComputerCraft) {
+        if ((quadrant[0] & 0x01) != 0) {
           int t = fgIndex;
           fgIndex = bgIndex;
           bgIndex = t;
-          quadrant[0] = 0;
+          quadrant[0] ^= 0x3F;
         }
-
-        if (palette.length > 2) {
-          if (pw * ph == 1) {
-            stream.write(fgIndex);
-          } else {
-            if (palette.length > 16) {
-              stream.write(bgIndex);
-              stream.write(fgIndex);
-            } else {
-              stream.write(bgIndex << 4 | fgIndex);
-            }
-          }
-
-          if (pw * ph > 2) {
-            for (int i = 0; i < quadrantLen; i++)
-              stream.write(quadrant[i]);
-          }
-        } else {
-          for (int i = 0; i < quadrantLen; i++)
-            stream.write(quadrant[i]);
+      } else if (platform instanceof PlatformOpenComputers && pw * ph > 2) {
+        if (bgIndex > fgIndex) {
+          int t = fgIndex;
+          fgIndex = bgIndex;
+          bgIndex = t;
+          quadrant[0] ^= (1 << (pw * ph)) - 1;
         }
+      }
 
-        for (int py = 0; py < ph; py++) {
-          for (int px = 0; px < pw; px++) {
-            int i = (pw * ph - 1) - (py * pw + px);
-
-            if ((quadrant[i >> 3] & (1 << (i & 7))) != 0) {
-              output.setRGB(cx * pw + px, cy * ph + py, palette[fgIndex].getRGB());
-            } else {
-              output.setRGB(cx * pw + px, cy * ph + py, palette[bgIndex].getRGB());
-            }
-          }
-        }
+      if (pw * ph == 2 && quadrant[0] == 1) {
+        int t = fgIndex;
+        fgIndex = bgIndex;
+        bgIndex = t;
+        quadrant[0] = 0;
       }
+
+      cellColors[cell * 2] = bgIndex;
+      cellColors[cell * 2 + 1] = fgIndex;
+      System.arraycopy(quadrant, 0, cellQuadrants, cell * quadrantLen, quadrantLen);
     }
   }
 }
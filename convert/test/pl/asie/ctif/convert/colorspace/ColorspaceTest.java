@@ -0,0 +1,35 @@
+package pl.asie.ctif.convert.colorspace;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ColorspaceTest {
+  private static final int CHUNK = 1 << 16;
+
+  @Test
+  void bulkConversionMatchesPerPixel() {
+    // every 24-bit color, a chunk at a time, at an offset into both arrays.
+    int[] rgb = new int[CHUNK + 1];
+    float[] values = new float[(CHUNK + 2) * 3];
+    int[] back = new int[CHUNK + 3];
+    for (Colorspace colorspace : Colorspace.values()) {
+      AbstractColorspace cs = colorspace.get();
+      for (int start = 0; start < 1 << 24; start += CHUNK) {
+        for (int i = 0; i < CHUNK; i++) {
+          rgb[i + 1] = (start + i) | 0xFF000000;
+        }
+        cs.fromRGB(rgb, 1, CHUNK, values, 3);
+        cs.toRGB(values, 3, CHUNK, back, 2);
+        for (int i = 0; i < CHUNK; i++) {
+          int o = (i + 1) * 3;
+          assertArrayEquals(cs.fromRGB(rgb[i + 1]), Arrays.copyOfRange(values, o, o + 3), colorspace + " from " + Integer.toHexString(start + i));
+          assertEquals(cs.toRGB(Arrays.copyOfRange(values, o, o + 3)), back[i + 2], colorspace + " to " + Integer.toHexString(start + i));
+        }
+      }
+    }
+  }
+}
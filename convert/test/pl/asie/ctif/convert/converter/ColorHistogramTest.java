@@ -0,0 +1,71 @@
+package pl.asie.ctif.convert.converter;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ColorHistogramTest {
+  // colors from a small range, so that most of them repeat.
+  static int[] pixels(int count, long seed) {
+    Random random = new Random(seed);
+    int[] pixels = new int[count];
+    for (int i = 0; i < count; i++) {
+      pixels[i] = random.nextInt() & 0xFF030F3F;
+    }
+    return pixels;
+  }
+
+  @Test
+  void matchesInsertionOrderedMap() {
+    int[] pixels = pixels(100_000, 1);
+    Map<Integer, Integer> expected = new LinkedHashMap<>();
+    ColorHistogram histogram = new ColorHistogram(8);
+    for (int rgb : pixels) {
+      expected.merge(rgb & 0xFFFFFF, 1, Integer::sum);
+      histogram.add(rgb);
+    }
+
+    assertEquals(expected.size(), histogram.size());
+    int i = 0;
+    for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+      assertEquals((int) entry.getKey(), histogram.rgb(i), "color of entry " + i);
+      assertEquals((int) entry.getValue(), histogram.weight(i), "weight of entry " + i);
+      i++;
+    }
+  }
+
+  @Test
+  void quantizedEntriesAreRoundedMeans() {
+    int bits = 5;
+    int channelMask = (0xFF << (8 - bits)) & 0xFF;
+    int mask = (channelMask << 16) | (channelMask << 8) | channelMask;
+    int[] pixels = pixels(100_000, 2);
+    Map<Integer, List<Integer>> expected = new LinkedHashMap<>();
+    ColorHistogram histogram = new ColorHistogram(bits);
+    for (int rgb : pixels) {
+      expected.computeIfAbsent(rgb & mask, k -> new ArrayList<>()).add(rgb & 0xFFFFFF);
+      histogram.add(rgb);
+    }
+
+    assertEquals(expected.size(), histogram.size());
+    int i = 0;
+    for (List<Integer> colors : expected.values()) {
+      long r = 0, g = 0, b = 0, w = colors.size();
+      for (int rgb : colors) {
+        r += (rgb >> 16) & 0xFF;
+        g += (rgb >> 8) & 0xFF;
+        b += rgb & 0xFF;
+      }
+      int mean = (int) ((r + w / 2) / w) << 16 | (int) ((g + w / 2) / w) << 8 | (int) ((b + w / 2) / w);
+      assertEquals(mean, histogram.rgb(i), "color of entry " + i);
+      assertEquals(colors.size(), histogram.weight(i), "weight of entry " + i);
+      i++;
+    }
+  }
+}
@@ -0,0 +1,35 @@
+package pl.asie.ctif.convert.converter;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class ColorKernelsTest {
+  @Test
+  void vectorKernelsMatchScalarKernels() {
+    ColorKernels kernels = ColorKernels.get();
+    assumeTrue(!(kernels instanceof ColorKernels.Scalar), "vectorized color kernels are not available");
+    ColorKernels scalar = new ColorKernels.Scalar();
+
+    Random random = new Random(3);
+    // every length up to a few vectors, so that the masked tail is covered for every lane count.
+    for (int n = 0; n <= 70; n++) {
+      float[] p0 = new float[n], p1 = new float[n], p2 = new float[n];
+      for (int i = 0; i < n; i++) {
+        p0[i] = random.nextFloat() * 255;
+        p1[i] = random.nextFloat() * 2 - 1;
+        p2[i] = random.nextFloat() * 2 - 1;
+      }
+      float c0 = random.nextFloat() * 255, c1 = random.nextFloat() * 2 - 1, c2 = random.nextFloat() * 2 - 1;
+
+      float[] expected = new float[n + 2];
+      float[] actual = new float[n + 2];
+      scalar.distancesSq(p0, p1, p2, n, c0, c1, c2, expected, 1);
+      kernels.distancesSq(p0, p1, p2, n, c0, c1, c2, actual, 1);
+      assertArrayEquals(expected, actual, "n = " + n);
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package pl.asie.ctif.convert.converter;
+
+import org.junit.jupiter.api.Test;
+import pl.asie.ctif.convert.colorspace.Colorspace;
+import pl.asie.ctif.convert.platform.AbstractPlatform;
+import pl.asie.ctif.convert.platform.Platform;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CtifDecoderTest {
+  // the preview UglyConverter used to draw while writing, pixel by pixel.
+  static BufferedImage preview(UglyConverter.Frame frame, Color[] palette, AbstractPlatform platform, int width, int height) {
+    int pw = platform.getCharWidth(), ph = platform.getCharHeight();
+    int cw = width / pw;
+    int quadrantLen = (pw * ph + 7) / 8;
+    BufferedImage output = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    for (int cell = 0; cell < frame.getCellCount(); cell++) {
+      int cx = cell % cw, cy = cell / cw;
+      int bgIndex = frame.cellColors[cell * 2];
+      int fgIndex = frame.cellColors[cell * 2 + 1];
+      for (int py = 0; py < ph; py++) {
+        for (int px = 0; px < pw; px++) {
+          int i = (pw * ph - 1) - (py * pw + px);
+          if ((frame.cellQuadrants[cell * quadrantLen + (i >> 3)] & (1 << (i & 7))) != 0) {
+            output.setRGB(cx * pw + px, cy * ph + py, palette[fgIndex].getRGB());
+          } else {
+            output.setRGB(cx * pw + px, cy * ph + py, palette[bgIndex].getRGB());
+          }
+        }
+      }
+    }
+    return output;
+  }
+
+  static int[] pixels(BufferedImage image) {
+    return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+  }
+
+  @Test
+  void decodedImageMatchesEncodedCells() {
+    for (Platform platform : Platform.values()) {
+      AbstractPlatform p = platform.get();
+      for (UglyConverter.DitherMode ditherMode : UglyConverter.DitherMode.values()) {
+        BufferedImage image = UglyConverterTest.image(p);
+        Color[] palette = UglyConverterTest.palette(p);
+        float[] ditherMatrix = DitherArrays.get(ditherMode == UglyConverter.DitherMode.ORDERED ? "4x4" : "floyd-steinberg");
+        UglyConverter converter = new UglyConverter(image, palette, ditherMode, ditherMatrix, p, Colorspace.YIQ.get(), 1);
+        UglyConverter.Frame frame = converter.encode(null);
+        ByteBuffer buffer = ByteBuffer.allocate(converter.getDataSize());
+        converter.write(buffer, frame);
+        buffer.flip();
+
+        BufferedImage decoded = CtifDecoder.decode(buffer, p).render();
+        String name = platform + " " + ditherMode;
+        assertEquals(image.getWidth(), decoded.getWidth(), name);
+        assertEquals(image.getHeight(), decoded.getHeight(), name);
+        assertArrayEquals(pixels(preview(frame, palette, p, image.getWidth(), image.getHeight())), pixels(decoded), name);
+      }
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package pl.asie.ctif.convert.converter;
+
+import org.junit.jupiter.api.Test;
+import pl.asie.ctif.convert.Util;
+import pl.asie.ctif.convert.colorspace.AbstractColorspace;
+import pl.asie.ctif.convert.colorspace.Colorspace;
+import pl.asie.ctif.convert.platform.AbstractPlatform;
+import pl.asie.ctif.convert.platform.Platform;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PaletteGeneratorKMeansTest {
+  /**
+   * Plain Lloyd's k-means over every pixel of the image, scanning every centroid for
+   * every point in every iteration.
+   */
+  static PaletteGeneratorKMeans.Result bruteForceKMeans(BufferedImage image, Color[] base, int colors, AbstractColorspace colorspace, float[][] centroids) {
+    ColorHistogram histogram = new ColorHistogram(8);
+    for (int y = 0; y < image.getHeight(); y++) {
+      for (int x = 0; x < image.getWidth(); x++) {
+        histogram.add(image.getRGB(x, y));
+      }
+    }
+    float[][] fixed = new float[base.length][];
+    for (int i = colors; i < base.length; i++) {
+      fixed[i] = colorspace.fromRGB(base[i].getRGB());
+    }
+
+    double totalError = 0;
+    int iterations = 0;
+    for (int reps = 0; reps < 128; reps++) {
+      iterations++;
+      float[][] means = new float[base.length][3];
+      int[] meanDivs = new int[base.length];
+      totalError = 0;
+      for (int p = 0; p < histogram.size(); p++) {
+        float[] point = colorspace.fromRGB(histogram.rgb(p));
+        int weight = histogram.weight(p);
+        double bestError = Float.MAX_VALUE;
+        int bestCentroid = 0;
+        for (int i = colors; i < base.length; i++) {
+          double err = Util.getColorDistanceSq(point, fixed[i]);
+          if (err < bestError) {
+            bestError = err;
+            bestCentroid = i;
+          }
+        }
+        for (int i = 0; i < colors; i++) {
+          double err = Util.getColorDistanceSq(point, centroids[i]);
+          if (err < bestError) {
+            bestError = err;
+            bestCentroid = i;
+          }
+        }
+        totalError += bestError * weight;
+        for (int c = 0; c < 3; c++) {
+          means[bestCentroid][c] += point[c] * weight;
+        }
+        meanDivs[bestCentroid] += weight;
+      }
+
+      boolean changed = false;
+      for (int i = 0; i < colors; i++) {
+        if (meanDivs[i] > 0) {
+          for (int c = 0; c < 3; c++) {
+            float n = means[i][c] / meanDivs[i];
+            changed |= n != centroids[i][c];
+            centroids[i][c] = n;
+          }
+        }
+      }
+      if (!changed) {
+        break;
+      }
+    }
+
+    Color[] out = Arrays.copyOf(base, base.length);
+    for (int k = 0; k < colors; k++) {
+      out[k] = new Color(colorspace.toRGB(centroids[k]) | 0xFF000000);
+    }
+    return new PaletteGeneratorKMeans.Result(out, totalError, iterations);
+  }
+
+  @Test
+  void boundedAssignmentMatchesBruteForce() {
+    for (Platform platform : new Platform[]{Platform.OC_TIER_3, Platform.CC_PALETTED}) {
+      AbstractPlatform p = platform.get();
+      for (Colorspace colorspace : Colorspace.values()) {
+        for (int seed = 0; seed < 3; seed++) {
+          BufferedImage image = UglyConverterTest.image(120, 80, seed);
+          AbstractColorspace cs = colorspace.get();
+          int colors = p.getCustomColorCount();
+          PaletteGeneratorKMeans generator = new PaletteGeneratorKMeans(image, p.getPalette(), colors, 0, cs, 1,
+              ConversionListener.NONE, seed, 8);
+
+          Random random = new Random(seed);
+          float[][] centroids = new float[colors][];
+          float[][] copy = new float[colors][];
+          for (int i = 0; i < colors; i++) {
+            centroids[i] = cs.fromRGB(image.getRGB(random.nextInt(image.getWidth()), random.nextInt(image.getHeight())));
+            copy[i] = centroids[i].clone();
+          }
+
+          String name = platform + " " + colorspace + " seed " + seed;
+          PaletteGeneratorKMeans.Result expected = bruteForceKMeans(image, p.getPalette(), colors, cs, copy);
+          PaletteGeneratorKMeans.Result actual = generator.generateKMeans(centroids);
+          assertArrayEquals(expected.colors(), actual.colors(), name);
+          assertEquals(expected.error(), actual.error(), name);
+          assertEquals(expected.iterations(), actual.iterations(), name);
+        }
+      }
+    }
+  }
+}
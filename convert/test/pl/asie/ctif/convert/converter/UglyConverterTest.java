@@ -0,0 +1,146 @@
+package pl.asie.ctif.convert.converter;
+
+import org.junit.jupiter.api.Test;
+import pl.asie.ctif.convert.Util;
+import pl.asie.ctif.convert.colorspace.AbstractColorspace;
+import pl.asie.ctif.convert.colorspace.Colorspace;
+import pl.asie.ctif.convert.platform.AbstractPlatform;
+import pl.asie.ctif.convert.platform.Platform;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class UglyConverterTest {
+  // a smooth gradient with some noise, so that cells get a mix of flat and busy content.
+  static BufferedImage image(int w, int h, long seed) {
+    BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+    Random random = new Random(seed);
+    for (int y = 0; y < h; y++) {
+      for (int x = 0; x < w; x++) {
+        int r = (int) (127 + 127 * Math.sin(x * 0.05 + seed));
+        int g = (int) (127 + 127 * Math.cos(y * 0.07));
+        int b = (x * y / 7 + random.nextInt(40)) & 0xFF;
+        image.setRGB(x, y, (r << 16) | (g << 8) | b);
+      }
+    }
+    return image;
+  }
+
+  static BufferedImage image(AbstractPlatform platform) {
+    int w = Math.min(platform.getWidthPx(), 96);
+    int h = Math.min(platform.getHeightPx(), 64);
+    return image(w - w % platform.getCharWidth(), h - h % platform.getCharHeight(), 7);
+  }
+
+  static Color[] palette(AbstractPlatform platform) {
+    Color[] palette = platform.getPalette();
+    Random random = new Random(1);
+    for (int i = 0; i < platform.getCustomColorCount(); i++) {
+      palette[i] = new Color(random.nextInt(0x1000000));
+    }
+    return palette;
+  }
+
+  static byte[] encode(Platform platform, UglyConverter.DitherMode ditherMode, int optimizationLevel, int threads) throws IOException {
+    AbstractPlatform p = platform.get();
+    float[] ditherMatrix = DitherArrays.get(ditherMode == UglyConverter.DitherMode.ORDERED ? "4x4" : "floyd-steinberg");
+    UglyConverter converter = new UglyConverter(image(p), palette(p), ditherMode, ditherMatrix, p,
+        Colorspace.YIQ.get(), optimizationLevel, threads);
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    converter.write(stream);
+    return stream.toByteArray();
+  }
+
+  @Test
+  void parallelEncodeMatchesSerial() throws IOException {
+    for (Platform platform : Platform.values()) {
+      for (UglyConverter.DitherMode ditherMode : new UglyConverter.DitherMode[]{UglyConverter.DitherMode.NONE, UglyConverter.DitherMode.ORDERED}) {
+        for (int optimizationLevel : new int[]{1, 3}) {
+          assertArrayEquals(encode(platform, ditherMode, optimizationLevel, 1), encode(platform, ditherMode, optimizationLevel, 3),
+              platform + " " + ditherMode + " -O" + optimizationLevel);
+        }
+      }
+    }
+  }
+
+  @Test
+  void wavefrontErrorDiffusionMatchesRasterOrder() throws IOException {
+    for (Platform platform : Platform.values()) {
+      for (int optimizationLevel : new int[]{1, 3}) {
+        byte[] serial = encode(platform, UglyConverter.DitherMode.ERROR, optimizationLevel, 1);
+        for (int threads : new int[]{2, 4}) {
+          assertArrayEquals(serial, encode(platform, UglyConverter.DitherMode.ERROR, optimizationLevel, threads),
+              platform + " -O" + optimizationLevel + " on " + threads + " threads");
+        }
+      }
+    }
+  }
+
+  // the squared error of every cell, between the decoded output and the converter's source image.
+  static double[] cellErrors(UglyConverter converter, UglyConverter.Frame frame, BufferedImage image, AbstractPlatform platform, AbstractColorspace colorspace) {
+    ByteBuffer buffer = ByteBuffer.allocate(converter.getDataSize());
+    converter.write(buffer, frame);
+    buffer.flip();
+    BufferedImage decoded = CtifDecoder.decode(buffer, platform).render();
+
+    int pw = platform.getCharWidth(), ph = platform.getCharHeight();
+    int cw = image.getWidth() / pw;
+    double[] errors = new double[frame.getCellCount()];
+    for (int cell = 0; cell < errors.length; cell++) {
+      for (int py = 0; py < ph; py++) {
+        for (int px = 0; px < pw; px++) {
+          int x = (cell % cw) * pw + px, y = (cell / cw) * ph + py;
+          errors[cell] += Util.getColorDistanceSq(colorspace.fromRGB(image.getRGB(x, y)), colorspace.fromRGB(decoded.getRGB(x, y)));
+        }
+      }
+    }
+    return errors;
+  }
+
+  static double[] cellErrors(BufferedImage image, Color[] palette, AbstractPlatform platform, AbstractColorspace colorspace, UglyConverter.CellSearch cellSearch) {
+    UglyConverter converter = new UglyConverter(image, palette, UglyConverter.DitherMode.NONE, null, platform, colorspace, 0, 1, cellSearch);
+    return cellErrors(converter, converter.encode(null), image, platform, colorspace);
+  }
+
+  @Test
+  void maskSearchMatchesExhaustivePairSearch() {
+    Random random = new Random(5);
+    for (Platform platform : new Platform[]{Platform.OC_TIER_3, Platform.OC_TIER_2, Platform.OC_TIER_1, Platform.CC}) {
+      AbstractPlatform p = platform.get();
+      int pw = p.getCharWidth(), ph = p.getCharHeight();
+      for (Colorspace colorspace : Colorspace.values()) {
+        AbstractColorspace cs = colorspace.get();
+        Color[] palette = palette(p);
+        // cells of random colors, of similar colors, and of plain white.
+        BufferedImage image = new BufferedImage(pw * 16, ph * 8, BufferedImage.TYPE_INT_RGB);
+        for (int cell = 0; cell < 16 * 8; cell++) {
+          int base = random.nextInt(0x1000000);
+          for (int py = 0; py < ph; py++) {
+            for (int px = 0; px < pw; px++) {
+              int rgb = switch (cell % 3) {
+                case 0 -> random.nextInt(0x1000000);
+                case 1 -> base + random.nextInt(0x202020);
+                default -> 0xFFFFFF;
+              };
+              image.setRGB((cell % 16) * pw + px, (cell / 16) * ph + py, rgb);
+            }
+          }
+        }
+
+        double[] pairs = cellErrors(image, palette, p, cs, UglyConverter.CellSearch.PAIRS);
+        double[] masks = cellErrors(image, palette, p, cs, UglyConverter.CellSearch.MASKS);
+        for (int cell = 0; cell < pairs.length; cell++) {
+          // both are optimal; they may only pick different pairs of equal error.
+          assertEquals(pairs[cell], masks[cell], 1e-6 * Math.max(1, pairs[cell]), platform + " " + colorspace + " cell " + cell);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,37 @@
+package pl.asie.ctif.convert.converter;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link ColorKernels} on top of the incubating Vector API. Only instantiated
+ * reflectively, when the {@code jdk.incubator.vector} module is present.
+ */
+final class VectorColorKernels extends ColorKernels {
+  private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+  @Override
+  void distancesSq(float[] p0, float[] p1, float[] p2, int n, float c0, float c1, float c2, float[] out, int outOffset) {
+    int i = 0;
+    for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+      FloatVector d0 = FloatVector.fromArray(SPECIES, p0, i).sub(c0);
+      FloatVector d1 = FloatVector.fromArray(SPECIES, p1, i).sub(c1);
+      FloatVector d2 = FloatVector.fromArray(SPECIES, p2, i).sub(c2);
+      // no fused multiply-add, to stay bit-identical to the scalar code.
+      d0.mul(d0).add(d1.mul(d1)).add(d2.mul(d2)).intoArray(out, outOffset + i);
+    }
+    if (i < n) {
+      VectorMask<Float> mask = SPECIES.indexInRange(i, n);
+      FloatVector d0 = FloatVector.fromArray(SPECIES, p0, i, mask).sub(c0);
+      FloatVector d1 = FloatVector.fromArray(SPECIES, p1, i, mask).sub(c1);
+      FloatVector d2 = FloatVector.fromArray(SPECIES, p2, i, mask).sub(c2);
+      d0.mul(d0).add(d1.mul(d1)).add(d2.mul(d2)).intoArray(out, outOffset + i, mask);
+    }
+  }
+
+  @Override
+  String name() {
+    return "vector (" + SPECIES.length() + " lanes)";
+  }
+}
@@ -12,6 +12,7 @@ java {
 
 application {
   mainClass.set("dev.tehbrian.ctif.provide.Main")
+  applicationDefaultJvmArgs = listOf("--add-modules=jdk.incubator.vector")
 }
 
 repositories {
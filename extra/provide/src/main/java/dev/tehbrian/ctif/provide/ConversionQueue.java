@@ -0,0 +1,124 @@
+package dev.tehbrian.ctif.provide;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admits CPU-heavy work (decoding and converting) to a fixed number of platform threads,
+ * sized so that running conversions together use about one thread per core. Work that
+ * doesn't fit in the bounded queue in front of them is rejected rather than piling up,
+ * and each client may only have a few requests in flight at once.
+ */
+public final class ConversionQueue {
+  /**
+   * Thrown when a request can't be admitted.
+   */
+  public static final class RejectedException extends Exception {
+    private final boolean clientLimited;
+
+    private RejectedException(final String message, final boolean clientLimited) {
+      super(message);
+      this.clientLimited = clientLimited;
+    }
+
+    /**
+     * @return whether the client has too many requests in flight, rather than the queue
+     * being full.
+     */
+    public boolean isClientLimited() {
+      return this.clientLimited;
+    }
+  }
+
+  private final int threadsPerTask;
+  private final int perClientLimit;
+  private final ThreadPoolExecutor executor;
+  private final ConcurrentHashMap<String, Integer> inFlight = new ConcurrentHashMap<>();
+
+  /**
+   * @param concurrency    how many tasks run at once.
+   * @param queueCapacity  how many tasks may wait for a free slot.
+   * @param perClientLimit how many requests a client may have in flight.
+   */
+  public ConversionQueue(final int concurrency, final int queueCapacity, final int perClientLimit) {
+    this.threadsPerTask = Math.max(1, Runtime.getRuntime().availableProcessors() / concurrency);
+    this.perClientLimit = perClientLimit;
+    this.executor = new ThreadPoolExecutor(
+        concurrency,
+        concurrency,
+        0,
+        TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueCapacity),
+        new ThreadPoolExecutor.AbortPolicy()
+    );
+  }
+
+  /**
+   * @return how many threads each task should use, so that together they fill the
+   * machine without oversubscribing it.
+   */
+  public int threadsPerTask() {
+    return this.threadsPerTask;
+  }
+
+  /**
+   * Marks a request from the client as in flight; must be paired with {@link #release}.
+   *
+   * @throws RejectedException if the client already has too many requests in flight
+   */
+  public void acquire(final String client) throws RejectedException {
+    if (this.inFlight.merge(client, 1, Integer::sum) > this.perClientLimit) {
+      this.release(client);
+      throw new RejectedException("Too many requests from client", true);
+    }
+  }
+
+  public void release(final String client) {
+    // drop the counter once the client is idle, so the map doesn't grow forever.
+    this.inFlight.computeIfPresent(client, (c, count) -> count > 1 ? count - 1 : null);
+  }
+
+  /**
+   * Runs the task on one of the queue's threads, waiting for it to finish.
+   *
+   * @throws RejectedException if the queue is full
+   */
+  public <T> T run(final Callable<T> task) throws RejectedException, InterruptedException, ExecutionException {
+    final Future<T> future;
+    try {
+      future = this.executor.submit(task);
+    } catch (final RejectedExecutionException e) {
+      throw new RejectedException("Conversion queue is full", false);
+    }
+    try {
+      return future.get();
+    } catch (final InterruptedException e) {
+      future.cancel(true);
+      throw e;
+    }
+  }
+
+  /**
+   * @return how many tasks are waiting for a free slot.
+   */
+  public int queueDepth() {
+    return this.executor.getQueue().size();
+  }
+
+  /**
+   * @return how many tasks are running.
+   */
+  public int running() {
+    return this.executor.getActiveCount();
+  }
+
+  public void shutdown() {
+    this.executor.shutdownNow();
+  }
+}
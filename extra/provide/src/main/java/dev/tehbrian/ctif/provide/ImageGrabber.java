@@ -3,12 +3,16 @@ package dev.tehbrian.ctif.provide;
 import com.github.kokorin.jaffree.ffmpeg.Frame;
 import com.github.kokorin.jaffree.ffmpeg.FrameConsumer;
 import com.github.kokorin.jaffree.ffmpeg.Stream;
+import org.jspecify.annotations.Nullable;
 
-import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Keeps the first video frame FFmpeg decodes. FFmpeg should be told to stop after it
+ * (e.g. {@code -frames:v 1}); any further frames are dropped rather than retained.
+ */
 public class ImageGrabber implements FrameConsumer {
-  final List<Frame> frames = new ArrayList<>();
+  private @Nullable Frame frame;
 
   @Override
   public void consumeStreams(final List<Stream> streams) {
@@ -16,12 +20,18 @@ public class ImageGrabber implements FrameConsumer {
 
   @Override
   public void consume(final Frame frame) {
-    if (frame != null) {
-      frames.add(frame);
+    if (this.frame == null && frame != null && frame.getImage() != null) {
+      this.frame = frame;
     }
   }
 
+  /**
+   * @throws IllegalStateException if FFmpeg didn't decode a video frame
+   */
   public Frame take() {
-    return frames.getFirst();
+    if (this.frame == null) {
+      throw new IllegalStateException("FFmpeg didn't decode any video frames");
+    }
+    return this.frame;
   }
 }
@@ -0,0 +1,162 @@
+package dev.tehbrian.ctif.provide;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The service's metrics, rendered in the Prometheus text exposition format: per-stage
+ * latency histograms, labeled counters, and values read from elsewhere when rendered.
+ */
+public final class Metrics {
+  // histogram bucket upper bounds, in seconds.
+  private static final double[] BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+
+  public enum Stage {
+    FETCH,
+    DECODE,
+    RESIZE,
+    PALETTE,
+    ENCODE,
+    WRITE
+  }
+
+  private record Sampled(String name, String type, String help, LongSupplier value) {
+  }
+
+  private static final class Histogram {
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+    private final DoubleAdder sum = new DoubleAdder();
+
+    private void observe(final double seconds) {
+      int bucket = 0;
+      while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+        bucket++;
+      }
+      this.counts.incrementAndGet(bucket);
+      this.sum.add(seconds);
+    }
+  }
+
+  private static final class LabeledCounter {
+    private final String name;
+    private final String help;
+    private final String label;
+    private final ConcurrentHashMap<String, LongAdder> values = new ConcurrentHashMap<>();
+
+    private LabeledCounter(final String name, final String help, final String label) {
+      this.name = name;
+      this.help = help;
+      this.label = label;
+    }
+
+    private void increment(final String value) {
+      this.values.computeIfAbsent(value, v -> new LongAdder()).increment();
+    }
+  }
+
+  private final Map<Stage, Histogram> stages = new EnumMap<>(Stage.class);
+  private final LabeledCounter errors = new LabeledCounter("ctif_errors_total", "Failed or rejected requests, by cause.", "cause");
+  private final LabeledCounter decodes = new LabeledCounter("ctif_decodes_total", "Decoded sources, by decoder.", "method");
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+  private final LongAdder inFlight = new LongAdder();
+  private final List<Sampled> sampled = new ArrayList<>();
+
+  public Metrics() {
+    for (final Stage stage : Stage.values()) {
+      this.stages.put(stage, new Histogram());
+    }
+  }
+
+  public void observe(final Stage stage, final Duration duration) {
+    this.stages.get(stage).observe(duration.toNanos() / 1e9);
+  }
+
+  public void error(final String cause) {
+    this.errors.increment(cause);
+  }
+
+  public void decoded(final SourceDecoder.Method method) {
+    this.decodes.increment(method.name().toLowerCase(Locale.ROOT));
+  }
+
+  public void bytesIn(final long bytes) {
+    this.bytesIn.add(bytes);
+  }
+
+  public void bytesOut(final long bytes) {
+    this.bytesOut.add(bytes);
+  }
+
+  public void requestStarted() {
+    this.inFlight.increment();
+  }
+
+  public void requestFinished() {
+    this.inFlight.decrement();
+  }
+
+  /**
+   * Registers a value that is read whenever the metrics are rendered.
+   *
+   * @param type {@code counter} or {@code gauge}.
+   */
+  public synchronized void register(final String name, final String type, final String help, final LongSupplier value) {
+    this.sampled.add(new Sampled(name, type, help, value));
+  }
+
+  public synchronized String render() {
+    final StringBuilder out = new StringBuilder();
+
+    header(out, "ctif_stage_duration_seconds", "histogram", "Time spent in each stage of a request.");
+    for (final Map.Entry<Stage, Histogram> entry : this.stages.entrySet()) {
+      final String stage = "stage=\"" + entry.getKey().name().toLowerCase(Locale.ROOT) + "\"";
+      final Histogram histogram = entry.getValue();
+      long cumulative = 0;
+      for (int i = 0; i <= BUCKETS.length; i++) {
+        cumulative += histogram.counts.get(i);
+        final String le = i < BUCKETS.length ? String.valueOf(BUCKETS[i]) : "+Inf";
+        out.append("ctif_stage_duration_seconds_bucket{").append(stage).append(",le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+      }
+      out.append("ctif_stage_duration_seconds_sum{").append(stage).append("} ").append(histogram.sum.sum()).append('\n');
+      out.append("ctif_stage_duration_seconds_count{").append(stage).append("} ").append(cumulative).append('\n');
+    }
+
+    for (final LabeledCounter counter : List.of(this.errors, this.decodes)) {
+      header(out, counter.name, "counter", counter.help);
+      // sorted, so the output is stable between scrapes.
+      for (final Map.Entry<String, LongAdder> entry : new TreeMap<>(counter.values).entrySet()) {
+        out.append(counter.name).append('{').append(counter.label).append("=\"").append(entry.getKey()).append("\"} ")
+            .append(entry.getValue().sum()).append('\n');
+      }
+    }
+
+    sample(out, "ctif_source_bytes_total", "counter", "Bytes of source media downloaded.", this.bytesIn.sum());
+    sample(out, "ctif_response_bytes_total", "counter", "Bytes of CTIF data sent.", this.bytesOut.sum());
+    sample(out, "ctif_requests_in_flight", "gauge", "Conversion requests being handled.", this.inFlight.sum());
+    for (final Sampled value : this.sampled) {
+      sample(out, value.name(), value.type(), value.help(), value.value().getAsLong());
+    }
+    return out.toString();
+  }
+
+  private static void header(final StringBuilder out, final String name, final String type, final String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void sample(final StringBuilder out, final String name, final String type, final String help, final long value) {
+    header(out, name, type, help);
+    out.append(name).append(' ').append(value).append('\n');
+  }
+}
@@ -0,0 +1,319 @@
+package dev.tehbrian.ctif.provide;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jspecify.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * A two-tier cache of finished CTIF files: a bounded in-memory LRU tier in front of a
+ * bounded on-disk tier, which survives restarts. Disk entries are promoted to the memory
+ * tier when read. Entries can also be reached through aliases, e.g. the URL a source was
+ * fetched from, which are only kept in memory.
+ */
+public final class ResultCache {
+  private static final Logger LOGGER = LogManager.getLogger();
+  private static final String SUFFIX = ".ctif";
+  private static final int MAX_ALIASES = 4096;
+
+  /**
+   * @param etag    a strong entity tag for the data, quotes included.
+   * @param created when the data was converted.
+   */
+  public record Entry(byte[] data, String etag, Instant created) {
+  }
+
+  private record Alias(String key, Instant created) {
+  }
+
+  public record Stats(
+      long memoryHits,
+      long diskHits,
+      long misses,
+      long memoryEvictions,
+      long diskEvictions,
+      long memoryBytes,
+      long diskBytes
+  ) {
+  }
+
+  private final Path directory;
+  private final long memoryCapacity;
+  private final long diskCapacity;
+
+  // both in access order, so the first entry is the least recently used.
+  private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75F, true);
+  private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75F, true);
+  private long memoryBytes;
+  private long diskBytes;
+  private final LinkedHashMap<String, Alias> aliases = new LinkedHashMap<>(16, 0.75F, true) {
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, Alias> eldest) {
+      return this.size() > MAX_ALIASES;
+    }
+  };
+
+  private final AtomicLong memoryHits = new AtomicLong();
+  private final AtomicLong diskHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong memoryEvictions = new AtomicLong();
+  private final AtomicLong diskEvictions = new AtomicLong();
+
+  /**
+   * @param directory      where the disk tier is stored; entries already there are kept.
+   * @param memoryCapacity the most bytes of data to keep in memory.
+   * @param diskCapacity   the most bytes of data to keep on disk.
+   */
+  public ResultCache(final Path directory, final long memoryCapacity, final long diskCapacity) throws IOException {
+    this.directory = directory;
+    this.memoryCapacity = memoryCapacity;
+    this.diskCapacity = diskCapacity;
+
+    Files.createDirectories(directory);
+    final List<Path> files;
+    try (Stream<Path> stream = Files.list(directory)) {
+      // left behind by writes that were interrupted.
+      for (final Path file : stream.filter(file -> file.getFileName().toString().endsWith(".tmp")).toList()) {
+        Files.deleteIfExists(file);
+      }
+    }
+    try (Stream<Path> stream = Files.list(directory)) {
+      // oldest first, so the most recently written entries are evicted last.
+      files = stream
+          .filter(file -> file.getFileName().toString().endsWith(SUFFIX))
+          .sorted(Comparator.comparing(ResultCache::lastModified))
+          .toList();
+    }
+    for (final Path file : files) {
+      final long size = Files.size(file);
+      this.disk.put(keyOf(file), size);
+      this.diskBytes += size;
+    }
+    this.evict();
+    LOGGER.info("Loaded {} cached results ({} bytes) from `{}`.", this.disk.size(), this.diskBytes, directory);
+  }
+
+  /**
+   * @return a key for the given parts, e.g. a source and the conversion parameters.
+   */
+  public static String key(final String... parts) {
+    final MessageDigest digest = sha256();
+    for (final String part : parts) {
+      digest.update(part.getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+    }
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  /**
+   * @return the hex SHA-256 hash of the data.
+   */
+  public static String hash(final byte[] data) {
+    return HexFormat.of().formatHex(sha256().digest(data));
+  }
+
+  /**
+   * @param maxAge how old the entry may be; if null, any age.
+   * @return the entry, or null if there is none (or it's too old).
+   */
+  public @Nullable Entry get(final String key, final @Nullable Duration maxAge) {
+    Entry entry;
+    synchronized (this) {
+      entry = this.memory.get(key);
+      // also marks the disk entry as recently used.
+      if (this.disk.get(key) == null && entry == null) {
+        this.misses.incrementAndGet();
+        return null;
+      }
+    }
+
+    final boolean fromMemory = entry != null;
+    if (!fromMemory) {
+      try {
+        entry = this.read(key);
+      } catch (final NoSuchFileException e) {
+        // evicted in the meantime.
+        this.misses.incrementAndGet();
+        return null;
+      } catch (final IOException e) {
+        LOGGER.warn("Failed to read cached result `{}`.", key, e);
+        this.misses.incrementAndGet();
+        return null;
+      }
+      synchronized (this) {
+        this.putMemory(key, entry);
+        this.evict();
+      }
+    }
+
+    if (maxAge != null && entry.created().plus(maxAge).isBefore(Instant.now())) {
+      this.misses.incrementAndGet();
+      return null;
+    }
+    (fromMemory ? this.memoryHits : this.diskHits).incrementAndGet();
+    return entry;
+  }
+
+  /**
+   * @param maxAge how long ago the alias may have been made.
+   * @return the entry the alias refers to, or null if there is none (or the alias is too old).
+   */
+  public @Nullable Entry getAlias(final String alias, final Duration maxAge) {
+    final Alias target;
+    synchronized (this) {
+      target = this.aliases.get(alias);
+    }
+    if (target == null || target.created().plus(maxAge).isBefore(Instant.now())) {
+      this.misses.incrementAndGet();
+      return null;
+    }
+    return this.get(target.key(), null);
+  }
+
+  /**
+   * Makes {@code alias} refer to the entry stored under {@code key}.
+   */
+  public synchronized void putAlias(final String alias, final String key) {
+    this.aliases.put(alias, new Alias(key, Instant.now()));
+  }
+
+  /**
+   * Stores the data in both tiers.
+   */
+  public Entry put(final String key, final byte[] data) {
+    final Entry entry = new Entry(data, etag(data), Instant.now());
+    Path temporary = null;
+    try {
+      // written to a temporary file first, so readers never see a partial entry.
+      temporary = Files.createTempFile(this.directory, key, ".tmp");
+      Files.write(temporary, data);
+    } catch (final IOException e) {
+      LOGGER.warn("Failed to write cached result `{}`.", key, e);
+      this.deleteTemporary(temporary);
+      temporary = null;
+    }
+
+    synchronized (this) {
+      // moved under the lock, so that eviction can't delete the file between the move
+      // and the disk tier learning about it.
+      if (temporary != null) {
+        try {
+          Files.move(temporary, this.directory.resolve(key + SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+          final Long previous = this.disk.put(key, (long) data.length);
+          this.diskBytes += data.length - (previous != null ? previous : 0);
+        } catch (final IOException e) {
+          LOGGER.warn("Failed to write cached result `{}`.", key, e);
+          this.deleteTemporary(temporary);
+        }
+      }
+      this.putMemory(key, entry);
+      this.evict();
+    }
+    return entry;
+  }
+
+  public synchronized Stats stats() {
+    return new Stats(
+        this.memoryHits.get(),
+        this.diskHits.get(),
+        this.misses.get(),
+        this.memoryEvictions.get(),
+        this.diskEvictions.get(),
+        this.memoryBytes,
+        this.diskBytes
+    );
+  }
+
+  private Entry read(final String key) throws IOException {
+    final Path file = this.directory.resolve(key + SUFFIX);
+    final byte[] data = Files.readAllBytes(file);
+    return new Entry(data, etag(data), lastModified(file).toInstant());
+  }
+
+  private void deleteTemporary(final @Nullable Path temporary) {
+    if (temporary == null) {
+      return;
+    }
+    try {
+      Files.deleteIfExists(temporary);
+    } catch (final IOException e) {
+      LOGGER.warn("Failed to delete `{}`.", temporary, e);
+    }
+  }
+
+  private void putMemory(final String key, final Entry entry) {
+    final Entry previous = this.memory.put(key, entry);
+    this.memoryBytes += entry.data().length - (previous != null ? previous.data().length : 0);
+  }
+
+  private void evict() {
+    final Iterator<Entry> memoryEntries = this.memory.values().iterator();
+    while (this.memoryBytes > this.memoryCapacity && memoryEntries.hasNext()) {
+      this.memoryBytes -= memoryEntries.next().data().length;
+      memoryEntries.remove();
+      this.memoryEvictions.incrementAndGet();
+    }
+
+    final List<String> deleted = new ArrayList<>();
+    final Iterator<Map.Entry<String, Long>> diskEntries = this.disk.entrySet().iterator();
+    while (this.diskBytes > this.diskCapacity && diskEntries.hasNext()) {
+      final Map.Entry<String, Long> entry = diskEntries.next();
+      this.diskBytes -= entry.getValue();
+      diskEntries.remove();
+      deleted.add(entry.getKey());
+      this.diskEvictions.incrementAndGet();
+    }
+    for (final String key : deleted) {
+      try {
+        Files.deleteIfExists(this.directory.resolve(key + SUFFIX));
+      } catch (final IOException e) {
+        LOGGER.warn("Failed to delete cached result `{}`.", key, e);
+      }
+    }
+  }
+
+  private static String etag(final byte[] data) {
+    return "\"" + hash(data).substring(0, 32) + "\"";
+  }
+
+  private static String keyOf(final Path file) {
+    final String name = file.getFileName().toString();
+    return name.substring(0, name.length() - SUFFIX.length());
+  }
+
+  private static FileTime lastModified(final Path file) {
+    try {
+      return Files.getLastModifiedTime(file);
+    } catch (final IOException e) {
+      return FileTime.fromMillis(0);
+    }
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (final NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,162 @@
+package dev.tehbrian.ctif.provide;
+
+import com.github.kokorin.jaffree.ffmpeg.FFmpeg;
+import com.github.kokorin.jaffree.ffmpeg.FrameOutput;
+import com.github.kokorin.jaffree.ffmpeg.PipeInput;
+import com.github.kokorin.jaffree.StreamType;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jspecify.annotations.Nullable;
+import pl.asie.ctif.convert.Stopwatch;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Iterator;
+
+/**
+ * Decodes a downloaded source into an image. Common still formats are recognized by their
+ * signature and decoded in-process; anything else, or anything ImageIO fails on, goes
+ * through FFmpeg, which costs a process spawn.
+ */
+public final class SourceDecoder {
+  private static final Logger LOGGER = LogManager.getLogger();
+  // larger images are subsampled while they're decoded in-process.
+  private static final long MAX_PIXELS = 1L << 24;
+
+  public enum Method {
+    IMAGEIO,
+    FFMPEG
+  }
+
+  /**
+   * @param elapsed how long decoding took, including a failed in-process attempt.
+   */
+  public record Decoded(BufferedImage image, Method method, Duration elapsed) {
+  }
+
+  /**
+   * Thrown when an image is too large to decode, even subsampled.
+   */
+  public static final class TooLargeException extends RuntimeException {
+    private TooLargeException(final String message) {
+      super(message);
+    }
+  }
+
+  private SourceDecoder() {
+  }
+
+  /**
+   * @param maxWidth  the width FFmpeg scales larger frames down to; in-process decoding
+   *                  keeps the full size, unless the image has more than 16 megapixels, in
+   *                  which case it is subsampled, to no less than the size it fits within
+   *                  maxWidth x maxHeight at.
+   * @param maxHeight the height larger frames are scaled down to, likewise.
+   * @throws TooLargeException if the image would have too many pixels even subsampled
+   */
+  public static Decoded decode(final byte[] source, final int maxWidth, final int maxHeight) {
+    final var stopwatch = Stopwatch.started();
+    final String format = sniff(source);
+    if (format != null) {
+      try {
+        final BufferedImage image = decodeWithImageIO(source, format, maxWidth, maxHeight);
+        if (image != null) {
+          return new Decoded(image, Method.IMAGEIO, stopwatch.timeElapsed());
+        }
+      } catch (final TooLargeException e) {
+        throw e;
+      } catch (final IOException | RuntimeException e) {
+        LOGGER.info("Failed to decode {} source in-process; falling back to FFmpeg.", format, e);
+      }
+    }
+
+    // decode only the first video frame, and have FFmpeg shrink it on the way out; the
+    // converter does the final, higher quality resize.
+    final var grabber = new ImageGrabber();
+    FFmpeg.atPath()
+        .addInput(PipeInput.pumpFrom(new ByteArrayInputStream(source)))
+        .addOutput(FrameOutput.withConsumer(grabber)
+            .setFrameCount(StreamType.VIDEO, 1L)
+            .disableStream(StreamType.AUDIO)
+            .disableStream(StreamType.SUBTITLE)
+            .setFilter(StreamType.VIDEO, scaleFilter(maxWidth, maxHeight)))
+        .execute();
+    return new Decoded(grabber.take().getImage(), Method.FFMPEG, stopwatch.timeElapsed());
+  }
+
+  /**
+   * @return a filter that fits frames within the given size, keeping their aspect ratio;
+   * smaller frames are left alone.
+   */
+  private static String scaleFilter(final int maxWidth, final int maxHeight) {
+    return String.format(
+        "scale='min(iw,%d)':'min(ih,%d)':force_original_aspect_ratio=decrease:flags=area",
+        maxWidth,
+        maxHeight
+    );
+  }
+
+  /**
+   * @return the ImageIO format name of the data, if it's a still format ImageIO reads well.
+   */
+  static @Nullable String sniff(final byte[] data) {
+    if (startsWith(data, 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n')) {
+      return "png";
+    } else if (startsWith(data, 0xFF, 0xD8, 0xFF)) {
+      return "jpeg";
+    } else if (startsWith(data, 'G', 'I', 'F', '8')) {
+      // only the first frame is used, which ImageIO handles fine.
+      return "gif";
+    } else if (startsWith(data, 'B', 'M')) {
+      return "bmp";
+    }
+    return null;
+  }
+
+  private static @Nullable BufferedImage decodeWithImageIO(final byte[] data, final String format, final int maxWidth, final int maxHeight) throws IOException {
+    final Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName(format);
+    if (!readers.hasNext()) {
+      return null;
+    }
+    final ImageReader reader = readers.next();
+    try (ImageInputStream stream = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+      reader.setInput(stream, true, true);
+      // the header is read first: a small file may claim a huge image.
+      final long width = reader.getWidth(0);
+      final long height = reader.getHeight(0);
+      final ImageReadParam param = reader.getDefaultReadParam();
+      if (width * height > MAX_PIXELS) {
+        // only every step-th pixel is decoded, keeping at least the size the image fits
+        // within maxWidth x maxHeight at; the converter shrinks it further anyway.
+        final int step = (int) Math.max(1, Math.max(width / maxWidth, height / maxHeight));
+        final long sampled = ((width + step - 1) / step) * ((height + step - 1) / step);
+        if (sampled > MAX_PIXELS) {
+          throw new TooLargeException("Image is too large: " + width + "x" + height);
+        }
+        LOGGER.info("Subsampling {}x{} source by {}.", width, height, step);
+        param.setSourceSubsampling(step, step, 0, 0);
+      }
+      return reader.read(0, param);
+    } finally {
+      reader.dispose();
+    }
+  }
+
+  private static boolean startsWith(final byte[] data, final int... signature) {
+    if (data.length < signature.length) {
+      return false;
+    }
+    for (int i = 0; i < signature.length; i++) {
+      if ((data[i] & 0xFF) != signature[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -1,8 +1,5 @@
 package dev.tehbrian.ctif.provide;
 
-import com.github.kokorin.jaffree.ffmpeg.FFmpeg;
-import com.github.kokorin.jaffree.ffmpeg.FrameOutput;
-import com.github.kokorin.jaffree.ffmpeg.PipeInput;
 import io.javalin.Javalin;
 import io.javalin.http.ContentType;
 import io.javalin.http.Context;
@@ -12,17 +9,26 @@ import org.apache.logging.log4j.Logger;
 import org.jspecify.annotations.Nullable;
 import pl.asie.ctif.convert.Stopwatch;
 import pl.asie.ctif.convert.colorspace.Colorspace;
+import pl.asie.ctif.convert.converter.ConversionListener;
 import pl.asie.ctif.convert.converter.Converter;
+import pl.asie.ctif.convert.converter.Resizer;
 import pl.asie.ctif.convert.converter.UglyConverter;
 import pl.asie.ctif.convert.platform.PlatformOpenComputers;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetAddress;
 import java.net.URI;
+import java.net.UnknownHostException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Controls the web server.
@@ -30,14 +36,54 @@ import java.time.Duration;
 public final class WebService {
   private static final Logger LOGGER = LogManager.getLogger();
 
+  private static final int WIDTH = 320;
+  private static final int HEIGHT = 200;
+  // every request is converted the same way; part of every cache key.
+  private static final String PARAMETERS = "oc-tier3 " + WIDTH + "x" + HEIGHT + " yiq O1 error";
+  // how long a URL's result is served without fetching the source again.
+  private static final Duration URL_MAX_AGE = Duration.ofHours(1);
+
+  // how long clients are asked to wait before retrying a rejected request.
+  private static final Duration RETRY_AFTER = Duration.ofSeconds(5);
+  private static final Duration SOURCE_TIMEOUT = Duration.ofSeconds(30);
+  // sources larger than this are not downloaded.
+  private static final int MAX_SOURCE_BYTES = 32 << 20;
+  // peers besides loopback whose X-Real-IP header is believed, e.g. -Dctif.trustedProxies=10.0.0.2,10.0.0.3
+  private static final Set<InetAddress> TRUSTED_PROXIES = parseAddresses(System.getProperty("ctif.trustedProxies", ""));
+
+  private final HttpClient client = HttpClient.newBuilder()
+      .followRedirects(HttpClient.Redirect.NORMAL)
+      .connectTimeout(Duration.ofSeconds(10))
+      .build();
+  private final Metrics metrics = new Metrics();
   private @Nullable Javalin javalin;
+  private @Nullable ResultCache cache;
+  private @Nullable ConversionQueue queue;
 
   /**
-   * Starts the web server. Creates the conversion endpoint.
+   * Starts the web server. Creates the conversion and {@code /metrics} endpoints, and
+   * loads the result cache from the {@code cache} directory.
    */
   public void start() {
-    this.javalin = Javalin.create();
+    try {
+      this.cache = new ResultCache(Path.of("cache"), 64L << 20, 1L << 30);
+    } catch (final IOException e) {
+      throw new RuntimeException(e);
+    }
 
+    // conversions split the cores between them; a few more may wait, the rest are turned away.
+    final int concurrency = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    this.queue = new ConversionQueue(concurrency, concurrency * 4, 2);
+    this.registerMetrics(this.cache, this.queue);
+
+    // requests spend most of their time waiting on the source or on the conversion queue.
+    this.javalin = Javalin.create(config -> config.useVirtualThreads = true);
+
+    // routes match in the order they're added, so this has to precede the catch-all.
+    this.javalin.get("/metrics", ctx -> {
+      ctx.contentType("text/plain; version=0.0.4; charset=utf-8");
+      ctx.result(this.metrics.render());
+    });
     this.javalin.get("/*", this::convert);
 
     final var port = 59100;
@@ -53,16 +99,36 @@ public final class WebService {
     if (this.javalin != null) {
       this.javalin.stop();
     }
+    if (this.queue != null) {
+      this.queue.shutdown();
+    }
+    this.client.close();
+  }
+
+  private void registerMetrics(final ResultCache cache, final ConversionQueue queue) {
+    this.metrics.register("ctif_conversion_queue_depth", "gauge", "Conversions waiting for a free slot.", queue::queueDepth);
+    this.metrics.register("ctif_conversions_running", "gauge", "Conversions running.", queue::running);
+    this.metrics.register("ctif_cache_memory_hits_total", "counter", "Results served from the memory cache.", () -> cache.stats().memoryHits());
+    this.metrics.register("ctif_cache_disk_hits_total", "counter", "Results served from the disk cache.", () -> cache.stats().diskHits());
+    this.metrics.register("ctif_cache_misses_total", "counter", "Cache lookups that found nothing.", () -> cache.stats().misses());
+    this.metrics.register("ctif_cache_memory_evictions_total", "counter", "Results evicted from the memory cache.", () -> cache.stats().memoryEvictions());
+    this.metrics.register("ctif_cache_disk_evictions_total", "counter", "Results evicted from the disk cache.", () -> cache.stats().diskEvictions());
+    this.metrics.register("ctif_cache_memory_bytes", "gauge", "Bytes held by the memory cache.", () -> cache.stats().memoryBytes());
+    this.metrics.register("ctif_cache_disk_bytes", "gauge", "Bytes held by the disk cache.", () -> cache.stats().diskBytes());
   }
 
   public String elapsed(final Stopwatch stopwatch) {
-    final Duration elapsed = stopwatch.timeElapsed();
+    return elapsed(stopwatch.timeElapsed());
+  }
+
+  public String elapsed(final Duration elapsed) {
     return String.format("%s.%s", elapsed.toSeconds(), elapsed.toMillisPart());
   }
 
   public void convert(final Context ctx) {
     final var url = ctx.queryParam("url");
     if (url == null || url.isEmpty()) {
+      this.metrics.error("bad_request");
       ctx.result("You must provide a source URL as a query parameter with the key `url`.");
       ctx.status(HttpStatus.BAD_REQUEST);
       return;
@@ -72,6 +138,7 @@ public final class WebService {
     try {
       uri = URI.create(url);
     } catch (final IllegalArgumentException e) {
+      this.metrics.error("bad_request");
       ctx.result("The provided source URL is not valid.");
       ctx.status(HttpStatus.BAD_REQUEST);
       return;
@@ -79,69 +146,247 @@ public final class WebService {
 
     LOGGER.info("Received request for URL `{}`.", url);
     final String realIpHeader = ctx.header("X-Real-IP");
-    if (realIpHeader != null) {
+    final String client;
+    if (realIpHeader != null && isTrustedProxy(ctx.ip())) {
       // request was proxied.
+      client = realIpHeader;
       LOGGER.info("|  Real IP: `{}`", realIpHeader);
     } else {
-      // request was not proxied.
+      // request was not proxied, or the header can't be believed.
+      client = ctx.ip();
       LOGGER.info("|  IP: `{}`", ctx.ip());
+      if (realIpHeader != null) {
+        LOGGER.info("|  Ignored X-Real-IP `{}` from an untrusted peer.", realIpHeader);
+      }
     }
     LOGGER.info("|  User Agent: `{}`", ctx.userAgent());
 
+    final ConversionQueue queue = Objects.requireNonNull(this.queue);
+    try {
+      queue.acquire(client);
+    } catch (final ConversionQueue.RejectedException e) {
+      this.reject(ctx, e);
+      return;
+    }
+    this.metrics.requestStarted();
+    try {
+      this.convert(ctx, url, uri, queue);
+    } finally {
+      this.metrics.requestFinished();
+      queue.release(client);
+    }
+  }
+
+  private void convert(final Context ctx, final String url, final URI uri, final ConversionQueue queue) {
+    final ResultCache cache = Objects.requireNonNull(this.cache);
+    final String urlKey = ResultCache.key("url", url, PARAMETERS);
+    ResultCache.Entry entry = cache.getAlias(urlKey, URL_MAX_AGE);
+    if (entry != null) {
+      LOGGER.info("Found cached result for URL.");
+      this.respond(ctx, entry);
+      return;
+    }
+
     LOGGER.info("Requesting source from URL.");
     final var toSource = Stopwatch.started();
-    final InputStream source;
-    final HttpClient client = HttpClient.newHttpClient();
+    final byte[] source;
     try {
-      source = client.send(
-          HttpRequest.newBuilder(uri).build(),
+      source = readSource(this.client.send(
+          HttpRequest.newBuilder(uri).timeout(SOURCE_TIMEOUT).build(),
           HttpResponse.BodyHandlers.ofInputStream()
-      ).body();
+      ));
     } catch (final IOException | InterruptedException e) {
       LOGGER.info("Exception caught while requesting source.", e);
+      this.metrics.error("fetch");
       ctx.result("Error while requesting source.");
       ctx.status(HttpStatus.INTERNAL_SERVER_ERROR);
       return;
     }
+    if (source == null) {
+      LOGGER.info("Source is larger than {} bytes.", MAX_SOURCE_BYTES);
+      this.metrics.error("source_too_large");
+      ctx.result("The source is too large.");
+      ctx.status(HttpStatus.BAD_REQUEST);
+      return;
+    }
     LOGGER.info("Requested source from URL. Took {}.", elapsed(toSource));
+    this.metrics.observe(Metrics.Stage.FETCH, toSource.timeElapsed());
+    this.metrics.bytesIn(source.length);
+
+    // the same source may be reachable from several URLs.
+    final String contentKey = ResultCache.key("content", ResultCache.hash(source), PARAMETERS);
+    entry = cache.get(contentKey, null);
+    if (entry != null) {
+      LOGGER.info("Found cached result for source.");
+    } else {
+      // decoding and converting are CPU-bound, so they wait for a free slot.
+      final byte[] data;
+      try {
+        data = queue.run(() -> {
+          LOGGER.info("Decoding source.");
+          final SourceDecoder.Decoded decoded = SourceDecoder.decode(source, 2 * WIDTH, 2 * HEIGHT);
+          LOGGER.info("Decoded source with {}. Took {}.", decoded.method(), elapsed(decoded.elapsed()));
+          this.metrics.observe(Metrics.Stage.DECODE, decoded.elapsed());
+          this.metrics.decoded(decoded.method());
+
+          LOGGER.info("Converting frame to CTIF.");
+          final var toCtif = Stopwatch.started();
+          final Converter.Result result = Converter.convertImage(
+              ConversionListener.NONE,
+              new PlatformOpenComputers(PlatformOpenComputers.Screen.TIER_3),
+              1,
+              Colorspace.YIQ.get(),
+              queue.threadsPerTask(),
+              decoded.image(),
+              WIDTH,
+              HEIGHT,
+              false,
+              Resizer.Mode.AREA,
+              UglyConverter.DitherMode.ERROR,
+              null,
+              1.0F,
+              UglyConverter.CellSearch.PAIRS,
+              0,
+              8,
+              null,
+              null,
+              null,
+              1.0F
+          );
+          LOGGER.info("Converted frame to CTIF. Took {}.", elapsed(toCtif));
+          this.metrics.observe(Metrics.Stage.RESIZE, result.timings().resize());
+          this.metrics.observe(Metrics.Stage.PALETTE, result.timings().palette());
+          this.metrics.observe(Metrics.Stage.ENCODE, result.timings().encode());
+          return result.data();
+        });
+      } catch (final ConversionQueue.RejectedException e) {
+        this.reject(ctx, e);
+        return;
+      } catch (final ExecutionException e) {
+        if (e.getCause() instanceof SourceDecoder.TooLargeException) {
+          LOGGER.info("Rejected source: {}.", e.getCause().getMessage());
+          this.metrics.error("source_too_large");
+          ctx.result("The source is too large.");
+          ctx.status(HttpStatus.BAD_REQUEST);
+          return;
+        }
+        LOGGER.info("Exception caught while converting source.", e.getCause());
+        this.metrics.error("conversion");
+        ctx.result("Error while converting source.");
+        ctx.status(HttpStatus.INTERNAL_SERVER_ERROR);
+        return;
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        this.metrics.error("interrupted");
+        this.reject(ctx, HttpStatus.SERVICE_UNAVAILABLE, "The server is shutting down.");
+        return;
+      }
+      entry = cache.put(contentKey, data);
+    }
+    cache.putAlias(urlKey, contentKey);
+    LOGGER.info("Cache: {}", cache.stats());
+
+    this.respond(ctx, entry);
+  }
 
-    LOGGER.info("Converting source to frame with FFmpeg.");
-    final var toFrame = Stopwatch.started();
-    final var grabber = new ImageGrabber();
-    FFmpeg.atPath()
-        .addInput(PipeInput.pumpFrom(source))
-        .addOutput(FrameOutput.withConsumer(grabber))
-        .execute();
-    LOGGER.info("Converted source to frame. Took {}.", elapsed(toFrame));
-
-    client.close();
-
-    LOGGER.info("Converting frame to CTIF.");
-    final var toCtif = Stopwatch.started();
-    final Converter.Result result = Converter.convertImage(
-        false,
-        new PlatformOpenComputers(PlatformOpenComputers.Screen.TIER_3),
-        1,
-        Colorspace.YIQ.get(),
-        Runtime.getRuntime().availableProcessors(),
-        grabber.take().getImage(),
-        320,
-        200,
-        false,
-        null,
-        UglyConverter.DitherMode.ERROR,
-        null,
-        1.0F,
-        0,
-        null,
-        null
-    );
-    LOGGER.info("Converted frame to CTIF. Took {}.", elapsed(toCtif));
+  /**
+   * @return the response body, or null if it's larger than {@link #MAX_SOURCE_BYTES}; then
+   * only that much is read before the connection is closed.
+   */
+  private static byte @Nullable [] readSource(final HttpResponse<InputStream> response) throws IOException {
+    try (InputStream body = response.body()) {
+      if (response.headers().firstValueAsLong("Content-Length").orElse(0) > MAX_SOURCE_BYTES) {
+        return null;
+      }
+      final byte[] data = body.readNBytes(MAX_SOURCE_BYTES + 1);
+      return data.length > MAX_SOURCE_BYTES ? null : data;
+    }
+  }
+
+  private void reject(final Context ctx, final ConversionQueue.RejectedException e) {
+    LOGGER.info("Rejected request: {}.", e.getMessage());
+    if (e.isClientLimited()) {
+      this.metrics.error("client_limit");
+      this.reject(ctx, HttpStatus.TOO_MANY_REQUESTS, "Too many requests at once; wait for the others to finish.");
+    } else {
+      this.metrics.error("queue_full");
+      this.reject(ctx, HttpStatus.SERVICE_UNAVAILABLE, "The server is busy; try again later.");
+    }
+  }
+
+  private void reject(final Context ctx, final HttpStatus status, final String message) {
+    ctx.header("Retry-After", String.valueOf(RETRY_AFTER.toSeconds()));
+    ctx.result(message);
+    ctx.status(status);
+  }
+
+  private void respond(final Context ctx, final ResultCache.Entry entry) {
+    ctx.header("ETag", entry.etag());
+    if (matches(ctx.header("If-None-Match"), entry.etag())) {
+      // the client already has this result.
+      ctx.status(HttpStatus.NOT_MODIFIED);
+      return;
+    }
 
     ctx.header("Content-Disposition", "inline");
     ctx.contentType(ContentType.APPLICATION_OCTET_STREAM);
-    ctx.result(result.data().toByteArray());
     ctx.status(HttpStatus.OK);
+
+    // written here rather than through ctx.result, so that the write can be timed.
+    final var toWrite = Stopwatch.started();
+    try {
+      ctx.res().setContentLength(entry.data().length);
+      ctx.res().getOutputStream().write(entry.data());
+      ctx.res().flushBuffer();
+    } catch (final IOException e) {
+      LOGGER.info("Exception caught while writing response.", e);
+      this.metrics.error("write");
+      return;
+    }
+    this.metrics.observe(Metrics.Stage.WRITE, toWrite.timeElapsed());
+    this.metrics.bytesOut(entry.data().length);
+  }
+
+  private static boolean isTrustedProxy(final String peer) {
+    try {
+      // a literal address, so this doesn't resolve anything.
+      final InetAddress address = InetAddress.getByName(peer);
+      return address.isLoopbackAddress() || TRUSTED_PROXIES.contains(address);
+    } catch (final UnknownHostException e) {
+      return false;
+    }
+  }
+
+  private static Set<InetAddress> parseAddresses(final String addresses) {
+    final Set<InetAddress> result = new HashSet<>();
+    for (final String address : addresses.split(",")) {
+      if (address.isBlank()) {
+        continue;
+      }
+      try {
+        result.add(InetAddress.getByName(address.trim()));
+      } catch (final UnknownHostException e) {
+        throw new IllegalArgumentException("Invalid trusted proxy address: " + address, e);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return whether an {@code If-None-Match} header value lists the entity tag.
+   */
+  private static boolean matches(final @Nullable String ifNoneMatch, final String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (final String candidate : ifNoneMatch.split(",")) {
+      final String tag = candidate.trim();
+      // weak comparison, as GET requests allow.
+      if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+        return true;
+      }
+    }
+    return false;
   }
 
 }